@@ -29,10 +29,13 @@ import java.sql.Statement;
 import java.sql.Types;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.ohdsi.utilities.SimpleCounter;
 import org.ohdsi.utilities.StringUtilities;
@@ -40,8 +43,13 @@ import org.ohdsi.utilities.files.Row;
 
 public class RichConnection implements Closeable {
 	public static int				INSERT_BATCH_SIZE	= 100000;
+	public static int				DEFAULT_FETCH_SIZE	= 10000;
 	private Connection				connection;
 	private boolean					verbose				= false;
+	private int						fetchSize			= DEFAULT_FETCH_SIZE;
+	// Number of streaming iterators that are open, and whether autocommit was switched off for them
+	private int						openStreamCount		= 0;
+	private boolean					restoreAutoCommit	= false;
 	private static DecimalFormat	decimalFormat		= new DecimalFormat("#.#");
 	private DbType					dbType;
 
@@ -119,6 +127,27 @@ public class RichConnection implements Closeable {
 		return new QueryResult(sql);
 	}
 
+	/**
+	 * Query the database using the provided SQL statement, returning the values of every row as an array.
+	 * 
+	 * @param sql
+	 * @return
+	 */
+	public ArrayQueryResult queryArrays(String sql) {
+		return new ArrayQueryResult(sql, false);
+	}
+
+	/**
+	 * Query the database using the provided SQL statement, returning the values of every row as an array. The rows are
+	 * fetched in batches of the fetch size, so use this for queries returning all rows of a table.
+	 * 
+	 * @param sql
+	 * @return
+	 */
+	public ArrayQueryResult streamArrays(String sql) {
+		return new ArrayQueryResult(sql, true);
+	}
+
 	/**
 	 * Switch the database to use.
 	 * 
@@ -210,6 +239,98 @@ public class RichConnection implements Closeable {
 		return returnVal;
 	}
 
+	/**
+	 * Returns the row counts of the tables in the database as recorded in the statistics of the database, which is much
+	 * faster than counting the rows but can be outdated. Tables without statistics are left out, or have a count of -1.
+	 * For BigQuery the recorded counts are exact.
+	 *
+	 * @param database
+	 *            the database (or schema) holding the tables
+	 * @return the row counts by table name, of which the names are matched case-insensitively
+	 */
+	public Map<String, Long> getTableSizeEstimates(String database) {
+		Map<String, Long> estimates = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		String query;
+		if (dbType == DbType.POSTGRESQL)
+			query = "SELECT c.relname, CAST(c.reltuples AS BIGINT) FROM pg_class c INNER JOIN pg_namespace n ON c.relnamespace = n.oid WHERE n.nspname = '"
+					+ database.toLowerCase() + "' AND c.relkind IN ('r', 'p', 'm');";
+		else if (dbType == DbType.REDSHIFT)
+			query = "SELECT \"table\", tbl_rows FROM svv_table_info WHERE \"schema\" = '" + database.toLowerCase() + "';";
+		else if (dbType == DbType.MSSQL || dbType == DbType.AZURE)
+			query = String.format("SELECT schemas.name + '.' + tables.name, SUM(partitions.rows) FROM %1$s.sys.tables " +
+					"INNER JOIN %1$s.sys.schemas ON tables.schema_id = schemas.schema_id " +
+					"INNER JOIN %1$s.sys.partitions ON tables.object_id = partitions.object_id AND partitions.index_id IN (0, 1) " +
+					"GROUP BY schemas.name, tables.name", database);
+		else if (dbType == DbType.ORACLE)
+			query = "SELECT TABLE_NAME, NUM_ROWS FROM ALL_TABLES WHERE OWNER = '" + database.toUpperCase() + "'";
+		else if (dbType == DbType.MYSQL)
+			query = "SELECT TABLE_NAME, TABLE_ROWS FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = '" + database + "';";
+		else if (dbType == DbType.TERADATA)
+			query = "SELECT TableName, MAX(RowCount) FROM dbc.StatsV WHERE DatabaseName = '" + database + "' GROUP BY TableName;";
+		else if (dbType == DbType.BIGQUERY)
+			query = "SELECT table_id, row_count FROM " + database + ".__TABLES__;";
+		else
+			return estimates;
+
+		ArrayQueryResult result = queryArrays(query);
+		try {
+			for (String[] row : result) {
+				String value = row[1].trim();
+				estimates.put(row[0], value.isEmpty() ? -1 : (long) Double.parseDouble(value));
+			}
+		} finally {
+			result.close();
+		}
+		return estimates;
+	}
+
+	/**
+	 * Loads the tables and views of the database with their columns, using a single query on the catalog of the
+	 * database (except for MS Access, of which the columns are read per table).
+	 */
+	public SchemaMetadata getSchemaMetadata(String database) {
+		SchemaMetadata schemaMetadata = new SchemaMetadata(database);
+		if (dbType == DbType.MSACCESS) {
+			for (String table : getTableNames(database)) {
+				try (ResultSet resultSet = getMsAccessFieldNames(table)) {
+					while (resultSet.next())
+						schemaMetadata.addColumn(table, resultSet.getString("COLUMN_NAME"), resultSet.getString("TYPE_NAME"));
+				} catch (SQLException e) {
+					throw new RuntimeException(e.getMessage());
+				}
+			}
+			return schemaMetadata;
+		}
+
+		String query = null;
+		if (dbType == DbType.ORACLE)
+			query = "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE FROM ALL_TAB_COLUMNS WHERE OWNER = '" + database.toUpperCase() + "' ORDER BY TABLE_NAME, COLUMN_ID";
+		else if (dbType == DbType.MSSQL || dbType == DbType.PDW)
+			query = "SELECT TABLE_SCHEMA + '.' + TABLE_NAME, COLUMN_NAME, DATA_TYPE FROM " + database + ".INFORMATION_SCHEMA.COLUMNS " +
+					"ORDER BY TABLE_SCHEMA, TABLE_NAME, ORDINAL_POSITION;";
+		else if (dbType == DbType.AZURE)
+			query = "SELECT TABLE_SCHEMA + '.' + TABLE_NAME, COLUMN_NAME, DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS ORDER BY TABLE_SCHEMA, TABLE_NAME, ORDINAL_POSITION;";
+		else if (dbType == DbType.MYSQL)
+			query = "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = '" + database + "' ORDER BY TABLE_NAME, ORDINAL_POSITION;";
+		else if (dbType == DbType.POSTGRESQL || dbType == DbType.REDSHIFT)
+			query = "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = '" + database.toLowerCase()
+					+ "' ORDER BY TABLE_NAME, ORDINAL_POSITION;";
+		else if (dbType == DbType.TERADATA)
+			query = "SELECT c.TableName, c.ColumnName, c.ColumnType FROM dbc.columns c INNER JOIN dbc.tables t ON c.DatabaseName = t.DatabaseName AND c.TableName = t.TableName " +
+					"WHERE t.TableKind IN ('T', 'V') AND c.DatabaseName = '" + database.toLowerCase() + "' ORDER BY c.TableName, c.ColumnId;";
+		else if (dbType == DbType.BIGQUERY)
+			query = "SELECT table_name, column_name, data_type FROM " + database + ".INFORMATION_SCHEMA.COLUMNS ORDER BY table_name, ordinal_position;";
+
+		ArrayQueryResult result = queryArrays(query);
+		try {
+			for (String[] row : result)
+				schemaMetadata.addColumn(row[0].trim(), row[1].trim(), row[2].trim());
+		} finally {
+			result.close();
+		}
+		return schemaMetadata;
+	}
+
 	/**
 	 * Close the connection to the database.
 	 */
@@ -225,6 +346,21 @@ public class RichConnection implements Closeable {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * Sets the number of rows fetched from the database at a time when iterating over the results of
+	 * {@link #streamArrays(String)}. The driver only holds this many rows in memory, also for queries returning all rows
+	 * of a large table. Zero lets the driver decide, which for some drivers means reading the entire result into memory.
+	 * 
+	 * @param fetchSize
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(0, fetchSize);
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
 	public class QueryResult implements Iterable<Row> {
 		private String				sql;
 
@@ -236,7 +372,7 @@ public class RichConnection implements Closeable {
 
 		@Override
 		public Iterator<Row> iterator() {
-			DBRowIterator iterator = new DBRowIterator(sql);
+			DBRowIterator iterator = new DBRowIterator(sql, false);
 			iterators.add(iterator);
 			return iterator;
 		}
@@ -248,6 +384,46 @@ public class RichConnection implements Closeable {
 		}
 	}
 
+	/**
+	 * Result of a query, of which the rows are returned as arrays of values instead of {@link Row} objects. The column
+	 * names are available once an iterator has been created. This avoids creating a map of field names for every row,
+	 * so use this for queries returning many rows.
+	 */
+	public class ArrayQueryResult implements Iterable<String[]> {
+		private String					sql;
+
+		private boolean					streaming;
+
+		private List<DBArrayIterator>	iterators	= new ArrayList<>();
+
+		public ArrayQueryResult(String sql, boolean streaming) {
+			this.sql = sql;
+			this.streaming = streaming;
+		}
+
+		@Override
+		public Iterator<String[]> iterator() {
+			DBArrayIterator iterator = new DBArrayIterator(sql, streaming);
+			iterators.add(iterator);
+			return iterator;
+		}
+
+		/**
+		 * Returns the names of the columns, in the order of the values in the returned arrays
+		 */
+		public List<String> getColumnNames() {
+			if (iterators.isEmpty())
+				throw new IllegalStateException("Column names are only known after the query has been executed");
+			return Arrays.asList(iterators.get(iterators.size() - 1).columnNames);
+		}
+
+		public void close() {
+			for (DBArrayIterator iterator : iterators) {
+				iterator.close();
+			}
+		}
+	}
+
 	/**
 	 * Inserts the rows into a table in the database.
 	 * 
@@ -412,16 +588,26 @@ public class RichConnection implements Closeable {
 		}
 	}
 
-	private class DBRowIterator implements Iterator<Row> {
+	/**
+	 * Iterates over the rows of a query result. The column names are read from the result set metadata once, and
+	 * columns with a name that occurred before in the result are skipped.
+	 */
+	private abstract class DBIterator<T> implements Iterator<T> {
+
+		private Statement		statement;
 
-		private ResultSet	resultSet;
+		private ResultSet		resultSet;
 
-		private boolean		hasNext;
+		private boolean			hasNext;
 
-		private Set<String>	columnNames	= new HashSet<>();
+		private boolean			streamOpen			= false;
 
-		public DBRowIterator(String sql) {
-			Statement statement;
+		protected String[]		columnNames;
+
+		// Result set indices (1-based) of the columns that are returned
+		protected int[]			columnIndices;
+
+		public DBIterator(String sql, boolean streaming) {
 			try {
 				sql.trim();
 				if (sql.endsWith(";"))
@@ -434,26 +620,97 @@ public class RichConnection implements Closeable {
 				}
 				long start = System.currentTimeMillis();
 				statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				if (streaming)
+					prepareForStreaming();
 				resultSet = statement.executeQuery(sql);
+				readColumns(resultSet.getMetaData());
 				hasNext = resultSet.next();
 				if (verbose)
 					outputQueryStats(statement, System.currentTimeMillis() - start);
+				if (!hasNext)
+					close();
 			} catch (SQLException e) {
 				System.err.println(sql);
 				System.err.println(e.getMessage());
+				close();
 				throw new RuntimeException(e);
 			}
 		}
 
+		/**
+		 * Makes the driver fetch the rows in batches of the fetch size, instead of reading the entire result into
+		 * memory. PostgreSQL and Redshift only use a cursor when autocommit is off, so autocommit is switched off until
+		 * the last streaming iterator of the connection is closed: committing would end the cursors of the others.
+		 * MySQL connections are opened with useCursorFetch, which makes the fetch size apply.
+		 */
+		private void prepareForStreaming() throws SQLException {
+			if (fetchSize == 0)
+				return;
+			if (dbType == DbType.POSTGRESQL || dbType == DbType.REDSHIFT) {
+				synchronized (RichConnection.this) {
+					if (openStreamCount == 0 && connection.getAutoCommit()) {
+						connection.setAutoCommit(false);
+						restoreAutoCommit = true;
+					}
+					openStreamCount++;
+					streamOpen = true;
+				}
+			}
+			try {
+				statement.setFetchSize(fetchSize);
+			} catch (SQLException e) {
+				// Not all drivers support setting the fetch size
+				if (verbose)
+					System.out.println("- Fetch size not supported: " + e.getMessage());
+			}
+		}
+
+		private void readColumns(ResultSetMetaData metaData) throws SQLException {
+			Set<String> uniqueNames = new HashSet<>();
+			List<String> names = new ArrayList<>();
+			List<Integer> indices = new ArrayList<>();
+			for (int i = 1; i < metaData.getColumnCount() + 1; i++) {
+				String columnName = metaData.getColumnName(i);
+				if (uniqueNames.add(columnName)) {
+					names.add(columnName);
+					indices.add(i);
+				}
+			}
+			columnNames = names.toArray(new String[0]);
+			columnIndices = new int[indices.size()];
+			for (int i = 0; i < columnIndices.length; i++)
+				columnIndices[i] = indices.get(i);
+		}
+
 		public void close() {
-			if (resultSet != null) {
-				try {
+			hasNext = false;
+			try {
+				if (resultSet != null)
 					resultSet.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
+				if (statement != null)
+					statement.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			} finally {
 				resultSet = null;
-				hasNext = false;
+				statement = null;
+				if (streamOpen)
+					endStreaming();
+			}
+		}
+
+		private void endStreaming() {
+			synchronized (RichConnection.this) {
+				streamOpen = false;
+				openStreamCount--;
+				if (openStreamCount == 0 && restoreAutoCommit) {
+					restoreAutoCommit = false;
+					try {
+						connection.setAutoCommit(true);
+					} catch (SQLException e) {
+						e.printStackTrace();
+					}
+				}
 			}
 		}
 
@@ -463,42 +720,63 @@ public class RichConnection implements Closeable {
 		}
 
 		@Override
-		public Row next() {
+		public T next() {
 			try {
-				Row row = new Row();
-				ResultSetMetaData metaData;
-				metaData = resultSet.getMetaData();
-				columnNames.clear();
-
-				for (int i = 1; i < metaData.getColumnCount() + 1; i++) {
-					String columnName = metaData.getColumnName(i);
-					if (columnNames.add(columnName)) {
-						String value;
-						try {
-							value = resultSet.getString(i);
-						} catch (Exception e) {
-							value = "";
-						}
-						if (value == null)
-							value = "";
-
-						row.add(columnName, value.replace(" 00:00:00", ""));
+				String[] values = new String[columnIndices.length];
+				for (int i = 0; i < columnIndices.length; i++) {
+					String value;
+					try {
+						value = resultSet.getString(columnIndices[i]);
+					} catch (Exception e) {
+						value = "";
 					}
+					if (value == null)
+						value = "";
+					else if (value.indexOf(" 00:00:00") != -1)
+						value = value.replace(" 00:00:00", "");
+					values[i] = value;
 				}
 				hasNext = resultSet.next();
-				if (!hasNext) {
-					resultSet.close();
-					resultSet = null;
-				}
-				return row;
+				if (!hasNext)
+					close();
+				return createRow(values);
 			} catch (SQLException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e);
 			}
 		}
 
+		protected abstract T createRow(String[] values);
+
 		@Override
 		public void remove() {
 		}
 	}
+
+	private class DBRowIterator extends DBIterator<Row> {
+
+		public DBRowIterator(String sql, boolean streaming) {
+			super(sql, streaming);
+		}
+
+		@Override
+		protected Row createRow(String[] values) {
+			Row row = new Row();
+			for (int i = 0; i < values.length; i++)
+				row.add(columnNames[i], values[i]);
+			return row;
+		}
+	}
+
+	private class DBArrayIterator extends DBIterator<String[]> {
+
+		public DBArrayIterator(String sql, boolean streaming) {
+			super(sql, streaming);
+		}
+
+		@Override
+		protected String[] createRow(String[] values) {
+			return values;
+		}
+	}
 }
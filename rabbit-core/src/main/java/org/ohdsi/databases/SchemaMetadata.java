@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * This file is part of WhiteRabbit
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.databases;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tables of a database and their columns, as loaded from the catalog of the database by
+ * {@link RichConnection#getSchemaMetadata(String)}. Loading all columns at once takes a single query, instead of one
+ * query per table.
+ */
+public class SchemaMetadata {
+
+	public static class Column {
+		public final String	name;
+		public final String	type;
+
+		public Column(String name, String type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	private final String					database;
+	private final Map<String, List<Column>>	tableToColumns	= new LinkedHashMap<>();
+
+	public SchemaMetadata(String database) {
+		this.database = database;
+	}
+
+	public String getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Adds a column to the table, after the columns added before.
+	 */
+	public void addColumn(String table, String name, String type) {
+		tableToColumns.computeIfAbsent(table, t -> new ArrayList<>()).add(new Column(name, type));
+	}
+
+	/** Get the names of the tables, in the order they were loaded. */
+	public List<String> getTableNames() {
+		return new ArrayList<>(tableToColumns.keySet());
+	}
+
+	/**
+	 * Returns the columns of the table. The table name is matched case-insensitively if there is no exact match.
+	 *
+	 * @return the columns, or null if the table is unknown
+	 */
+	public List<Column> getColumns(String table) {
+		List<Column> columns = tableToColumns.get(table);
+		if (columns == null) {
+			for (Map.Entry<String, List<Column>> entry : tableToColumns.entrySet()) {
+				if (entry.getKey().equalsIgnoreCase(table))
+					return entry.getValue();
+			}
+		}
+		return columns;
+	}
+}
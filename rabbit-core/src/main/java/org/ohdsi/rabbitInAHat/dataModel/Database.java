@@ -27,8 +27,11 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.ohdsi.utilities.ScanFieldName;
 import org.ohdsi.utilities.ScanSheetName;
+import org.ohdsi.utilities.collections.Pair;
 import org.ohdsi.utilities.files.QuickAndDirtyXlsxReader;
 import org.ohdsi.utilities.files.QuickAndDirtyXlsxReader.Sheet;
+import org.ohdsi.utilities.files.ScanResultReader;
+import org.ohdsi.utilities.files.ScanResultWriter;
 
 public class Database implements Serializable {
 
@@ -139,6 +142,8 @@ public class Database implements Serializable {
 	}
 
 	public static Database generateModelFromScanReport(String filename) {
+		if (filename.toLowerCase().endsWith(ScanResultWriter.EXTENSION))
+			return generateModelFromScanResult(filename);
 		Database database = new Database();
 		QuickAndDirtyXlsxReader workbook = new QuickAndDirtyXlsxReader(filename);
 
@@ -190,6 +195,64 @@ public class Database implements Serializable {
 		return database;
 	}
 
+	/**
+	 * Creates the model from the scan result file written by WhiteRabbit, of which the scan report is an export. Only
+	 * the columns and value counts used by the model are read.
+	 */
+	public static Database generateModelFromScanResult(String filename) {
+		Database database = new Database();
+		try (ScanResultReader reader = new ScanResultReader(filename)) {
+			List<String> tableOverviewHeader = reader.getTableOverviewHeader();
+			for (int i = 0; i < reader.getTableCount(); i++) {
+				List<Object> tableOverviewRow = reader.getTableOverviewRow(i);
+				Table table = createTable(
+						ScanResultReader.getString(tableOverviewRow.get(tableOverviewHeader.indexOf(ScanFieldName.TABLE))),
+						ScanResultReader.getString(tableOverviewRow.get(tableOverviewHeader.indexOf(ScanFieldName.DESCRIPTION))),
+						ScanResultReader.getInt(tableOverviewRow.get(tableOverviewHeader.indexOf(ScanFieldName.N_ROWS))),
+						ScanResultReader.getInt(tableOverviewRow.get(tableOverviewHeader.indexOf(ScanFieldName.N_ROWS_CHECKED)))
+				);
+				database.tables.add(table);
+
+				List<Object> fieldNames = reader.getFieldOverviewColumn(i, ScanFieldName.FIELD);
+				List<Object> types = reader.getFieldOverviewColumn(i, ScanFieldName.TYPE);
+				List<Object> maxLengths = reader.getFieldOverviewColumn(i, ScanFieldName.MAX_LENGTH);
+				List<Object> descriptions = reader.getFieldOverviewColumn(i, ScanFieldName.DESCRIPTION);
+				List<Object> fractionsEmpty = getFieldOverviewColumn(reader, i, ScanFieldName.FRACTION_EMPTY);
+				List<Object> uniqueCounts = getFieldOverviewColumn(reader, i, ScanFieldName.UNIQUE_COUNT);
+				List<Object> fractionsUnique = getFieldOverviewColumn(reader, i, ScanFieldName.FRACTION_UNIQUE);
+				for (int j = 0; j < fieldNames.size(); j++) {
+					Field field = new Field(ScanResultReader.getString(fieldNames.get(j)).toLowerCase(), table);
+					field.setType(ScanResultReader.getString(types.get(j)));
+					field.setMaxLength(ScanResultReader.getInt(maxLengths.get(j)));
+					field.setDescription(ScanResultReader.getString(descriptions.get(j)));
+					field.setFractionEmpty(ScanResultReader.getDouble(fractionsEmpty.get(j)));
+					field.setUniqueCount(ScanResultReader.getInt(uniqueCounts.get(j)));
+					field.setFractionUnique(ScanResultReader.getDouble(fractionsUnique.get(j)));
+
+					ValueCounts valueCounts = new ValueCounts();
+					if (reader.hasValueCounts(i))
+						for (Pair<String, Integer> valueCount : reader.getValueCounts(i, j))
+							// Skip counts that are not reported, as for 'List truncated...'
+							if (valueCount.getItem2() != -1)
+								valueCounts.add(valueCount.getItem1(), valueCount.getItem2());
+					field.setValueCounts(valueCounts);
+
+					table.getFields().add(field);
+				}
+			}
+		}
+		return database;
+	}
+
+	/**
+	 * Get a column of the field overview of the table, or empty cells if the column was not part of the scan.
+	 */
+	private static List<Object> getFieldOverviewColumn(ScanResultReader reader, int table, String columnName) {
+		if (reader.getFieldOverviewHeader().contains(columnName))
+			return reader.getFieldOverviewColumn(table, columnName);
+		return new ArrayList<>(Collections.nCopies(reader.getFieldCount(table), null));
+	}
+
 	public static Table createTable(String name, String description, Integer nRows, Integer nRowsChecked) {
 		Table table = new Table();
 		table.setName(name.toLowerCase());
@@ -17,30 +17,301 @@
  ******************************************************************************/
 package org.ohdsi.utilities;
 
+import java.text.ParsePosition;
+import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Recognises and parses dates without creating a formatter per value.
+ *
+ * <p>The built-in layouts are parsed directly from the digits:
+ * <ul>
+ *     <li>yyyy?MM?dd, for instance 2020-12-31 or 2020/12/31</li>
+ *     <li>MM?dd?yy, for instance 12-31-20 (years 2000-2099)</li>
+ *     <li>ISO timestamps, such as 2020-12-31T23:59:59Z or 2020-12-31 23:59:59.0. Only the date is used</li>
+ * </ul>
+ * where ? is any separator that is not a digit, and is the same for both separators. The static methods only recognise
+ * these layouts. Values in other formats are recognised by an instance created with the patterns of those formats.
+ */
 public class DateUtilities {
-    /**
-     * Parses a date to millis. Copies behaviour of StringUtilities.isDate()
-     * Two recognised date formats:
-     *  - yyyy*dd*MM
-     *  - MM*dd*yy
-     * If the time included, the value is NOT recognised as a date.
-     * @param dateString value to be parsed
-     * @return long date as time in millis
-     */
-    public static long parseDate(String dateString) {
-        String pattern = "";
-        if (dateString.length() == 10) {
-            char separator = dateString.charAt(4);
-            pattern = "yyyy" + separator + "MM" + separator + "dd";
-        } else if (dateString.length() == 8) {
-            char separator = dateString.charAt(2);
-            pattern = "MM" + separator + "dd" + separator + "yy";
-        }
-
-        LocalDate localDate = LocalDate.from(DateTimeFormatter.ofPattern(pattern).parse(dateString));
-        return localDate.toEpochDay();
-    }
+	public static final long INVALID_DATE = Long.MIN_VALUE;
+
+	private static final String ISO_TIMESTAMP = "yyyy-MM-dd'T'HH:mm:ss";
+	private static final String SQL_TIMESTAMP = "yyyy-MM-dd HH:mm:ss";
+
+	private final List<DateFormat> dateFormats;
+
+	/**
+	 * @param patterns additional date patterns (as used by {@link DateTimeFormatter#ofPattern(String)}) that are tried,
+	 *                 in order, for values that are not in one of the built-in layouts. The formatters are created once
+	 */
+	public DateUtilities(List<String> patterns) {
+		List<DateFormat> formats = new ArrayList<>();
+		for (String pattern : patterns) {
+			formats.add(new DateFormat(pattern, DateTimeFormatter.ofPattern(pattern)));
+		}
+		dateFormats = formats;
+	}
+
+	public static boolean isDate(CharSequence value) {
+		return parseDate(value, 0, value.length()) != INVALID_DATE;
+	}
+
+	/**
+	 * Parses a date to days since 1970-01-01. Recognises the same values as {@link #isDate(CharSequence)}.
+	 * @param dateString value to be parsed
+	 * @return long date as epoch day
+	 * @throws DateTimeParseException if the value is not a date
+	 */
+	public static long parseDate(String dateString) {
+		long epochDay = parseDate(dateString, 0, dateString.length());
+		if (epochDay == INVALID_DATE) {
+			throw new DateTimeParseException("Text '" + dateString + "' is not a recognised date", dateString, 0);
+		}
+		return epochDay;
+	}
+
+	/**
+	 * Parses the characters from start (inclusive) to end (exclusive) of the value to days since 1970-01-01, if they
+	 * are in one of the built-in layouts.
+	 * @return the epoch day, or INVALID_DATE if the value is not a date
+	 */
+	public static long parseDate(CharSequence value, int start, int end) {
+		int length = end - start;
+		long epochDay = INVALID_DATE;
+		if (length == 10) {
+			epochDay = parseYearMonthDay(value, start);
+		} else if (length == 8) {
+			epochDay = parseMonthDayYear(value, start);
+		} else if (length >= 16 && value.charAt(start + 4) == '-') {
+			epochDay = parseTimestamp(value, start, end);
+		}
+		return epochDay;
+	}
+
+	/**
+	 * Parses the characters from start (inclusive) to end (exclusive) of the value to days since 1970-01-01, if they
+	 * are in one of the built-in layouts or in one of the formats of this instance.
+	 * @return the epoch day, or INVALID_DATE if the value is not a date
+	 */
+	public long parse(CharSequence value, int start, int end) {
+		long epochDay = parseDate(value, start, end);
+		if (epochDay != INVALID_DATE) {
+			return epochDay;
+		}
+		return parseConfiguredFormat(value, start, end, null);
+	}
+
+	/**
+	 * Returns the pattern of the format of a date in one of the built-in layouts, for instance yyyy-MM-dd.
+	 * @return the pattern, or null if the value is not a date
+	 */
+	public static String getDateFormat(CharSequence value, int start, int end) {
+		int length = end - start;
+		if (length == 10 && parseYearMonthDay(value, start) != INVALID_DATE) {
+			char separator = value.charAt(start + 4);
+			return "yyyy" + separator + "MM" + separator + "dd";
+		} else if (length == 8 && parseMonthDayYear(value, start) != INVALID_DATE) {
+			char separator = value.charAt(start + 2);
+			return "MM" + separator + "dd" + separator + "yy";
+		} else if (length >= 16 && value.charAt(start + 4) == '-' && parseTimestamp(value, start, end) != INVALID_DATE) {
+			return value.charAt(start + 10) == 'T' ? ISO_TIMESTAMP : SQL_TIMESTAMP;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the pattern of the format of a date in one of the built-in layouts or in one of the formats of this
+	 * instance.
+	 * @return the pattern, or null if the value is not a date
+	 */
+	public String getFormat(CharSequence value, int start, int end) {
+		String pattern = getDateFormat(value, start, end);
+		if (pattern != null) {
+			return pattern;
+		}
+		String[] matchedPattern = new String[1];
+		parseConfiguredFormat(value, start, end, matchedPattern);
+		return matchedPattern[0];
+	}
+
+	/**
+	 * yyyy?MM?dd. Like the formatter this replaces, a day that is too high for the month is changed to the last day of
+	 * the month.
+	 */
+	private static long parseYearMonthDay(CharSequence value, int start) {
+		char separator = value.charAt(start + 4);
+		if (separator != value.charAt(start + 7) || isDigit(separator)) {
+			return INVALID_DATE;
+		}
+		int year = parseDigits(value, start, 4);
+		int month = parseDigits(value, start + 5, 2);
+		int day = parseDigits(value, start + 8, 2);
+		if (year < 1700 || year > 2200) {
+			return INVALID_DATE;
+		}
+		return toEpochDay(year, month, day);
+	}
+
+	/**
+	 * MM?dd?yy, with years 2000-2099
+	 */
+	private static long parseMonthDayYear(CharSequence value, int start) {
+		char separator = value.charAt(start + 2);
+		if (separator != value.charAt(start + 5) || isDigit(separator)) {
+			return INVALID_DATE;
+		}
+		int month = parseDigits(value, start, 2);
+		int day = parseDigits(value, start + 3, 2);
+		int year = parseDigits(value, start + 6, 2);
+		if (year < 0) {
+			return INVALID_DATE;
+		}
+		return toEpochDay(2000 + year, month, day);
+	}
+
+	/**
+	 * yyyy-MM-dd followed by T or a space, HH:mm, and optionally :ss, a fraction of a second and a time zone offset
+	 * (Z, +HH, +HHmm or +HH:mm).
+	 */
+	private static long parseTimestamp(CharSequence value, int start, int end) {
+		char separator = value.charAt(start + 10);
+		if (value.charAt(start + 7) != '-' || (separator != 'T' && separator != ' ') || value.charAt(start + 13) != ':') {
+			return INVALID_DATE;
+		}
+		int hour = parseDigits(value, start + 11, 2);
+		int minute = parseDigits(value, start + 14, 2);
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+			return INVALID_DATE;
+		}
+		int i = start + 16;
+		if (i + 2 < end && value.charAt(i) == ':') {
+			int second = parseDigits(value, i + 1, 2);
+			if (second < 0 || second > 60) {
+				return INVALID_DATE;
+			}
+			i += 3;
+			if (i < end && value.charAt(i) == '.') {
+				int fractionStart = ++i;
+				while (i < end && isDigit(value.charAt(i))) {
+					i++;
+				}
+				if (i == fractionStart || i - fractionStart > 9) {
+					return INVALID_DATE;
+				}
+			}
+		}
+		if (i < end) {
+			char zone = value.charAt(i);
+			if (zone == 'Z' && i + 1 == end) {
+				i++;
+			} else if (zone == '+' || zone == '-') {
+				int remaining = end - i - 1;
+				boolean valid = remaining == 2 && parseDigits(value, i + 1, 2) >= 0
+						|| remaining == 4 && parseDigits(value, i + 1, 4) >= 0
+						|| remaining == 5 && value.charAt(i + 3) == ':' && parseDigits(value, i + 1, 2) >= 0 && parseDigits(value, i + 4, 2) >= 0;
+				if (!valid) {
+					return INVALID_DATE;
+				}
+				i = end;
+			}
+		}
+		if (i != end) {
+			return INVALID_DATE;
+		}
+		return parseYearMonthDay(value, start);
+	}
+
+	/**
+	 * Tries the configured formats in order.
+	 * @param matchedPattern if not null, its first element is set to the pattern of the format that matched
+	 */
+	private long parseConfiguredFormat(CharSequence value, int start, int end, String[] matchedPattern) {
+		if (dateFormats.isEmpty()) {
+			return INVALID_DATE;
+		}
+		CharSequence text = value.subSequence(start, end);
+		for (DateFormat format : dateFormats) {
+			// Check the structure without exceptions first, so only values that almost match can throw
+			ParsePosition position = new ParsePosition(0);
+			if (format.formatter.parseUnresolved(text, position) == null || position.getIndex() != text.length()) {
+				continue;
+			}
+			try {
+				long epochDay = LocalDate.from(format.formatter.parse(text)).toEpochDay();
+				if (matchedPattern != null) {
+					matchedPattern[0] = format.pattern;
+				}
+				return epochDay;
+			} catch (DateTimeException e) {
+				// Not a valid date in this format, try the next one
+			}
+		}
+		return INVALID_DATE;
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+	 * @return the epoch day, or INVALID_DATE if the month is not 1-12 or the day is not 1-31
+	 */
+	private static long toEpochDay(int year, int month, int day) {
+		if (month < 1 || month > 12 || day < 1 || day > 31) {
+			return INVALID_DATE;
+		}
+		day = Math.min(day, lengthOfMonth(year, month));
+		// Count years from March, so the leap day is at the end of the year
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static int lengthOfMonth(int year, int month) {
+		switch (month) {
+			case 2:
+				return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	/**
+	 * @return the value of the ASCII digits, or -1 if not all characters are ASCII digits
+	 */
+	private static int parseDigits(CharSequence value, int start, int count) {
+		int result = 0;
+		for (int i = start; i < start + count; i++) {
+			char ch = value.charAt(i);
+			if (!isDigit(ch)) {
+				return -1;
+			}
+			result = result * 10 + (ch - '0');
+		}
+		return result;
+	}
+
+	private static boolean isDigit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+
+	private static class DateFormat {
+		private final String pattern;
+		private final DateTimeFormatter formatter;
+
+		private DateFormat(String pattern, DateTimeFormatter formatter) {
+			this.pattern = pattern;
+			this.formatter = formatter;
+		}
+	}
 }
@@ -7,17 +7,24 @@ public interface ScanFieldName {
     String TYPE = "Type";
     String MAX_LENGTH = "Max length";
     String N_ROWS = "N rows";
+    String N_ROWS_TYPE = "N rows type";
     String N_ROWS_CHECKED = "N rows checked";
     String FRACTION_EMPTY = "Fraction empty";
     String UNIQUE_COUNT = "N unique values";
     String FRACTION_UNIQUE = "Fraction unique";
+    String FREQUENCY_ERROR = "Max frequency error";
     String AVERAGE = "Average";
     String STDEV = "Standard Deviation";
     String MIN = "Min";
+    String P1 = "1%";
+    String P5 = "5%";
     String Q1 = "25%";
     String Q2 = "Median";
     String Q3 = "75%";
+    String P95 = "95%";
+    String P99 = "99%";
     String MAX = "Max";
+    String DATE_FORMAT = "Date format";
     String N_FIELDS = "N Fields";
     String N_FIELDS_EMPTY = "N Fields Empty";
 }
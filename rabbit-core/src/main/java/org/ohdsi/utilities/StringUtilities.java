@@ -836,40 +836,11 @@ public class StringUtilities {
 		}
 	}
 	
+	/**
+	 * Checks whether the string is a date in one of the built-in layouts of {@link DateUtilities}
+	 */
 	public static boolean isDate(String string) {
-		if (string.length() == 10) {
-			if ((string.charAt(4) == '-' || string.charAt(4) == '/') || (string.charAt(4) == string.charAt(7)))
-				try {
-					int year = Integer.parseInt(string.substring(0, 4));
-					if (year < 1700 || year > 2200)
-						return false;
-					int month = Integer.parseInt(string.substring(5, 7));
-					if (month < 1 || month > 12)
-						return false;
-					int day = Integer.parseInt(string.substring(8, 10));
-					if (day < 1 || day > 31)
-						return false;
-					return true;
-				} catch (Exception e) {
-					return false;
-				}
-		} else if (string.length() == 8) {
-			if ((string.charAt(2) == '-' || string.charAt(5) == '/') || (string.charAt(2) == string.charAt(5)))
-				try {
-					Integer.parseInt(string.substring(6, 8));
-					int month = Integer.parseInt(string.substring(0, 2));
-					if (month < 1 || month > 12)
-						return false;
-					int day = Integer.parseInt(string.substring(3, 5));
-					if (day < 1 || day > 31)
-						return false;
-					return true;
-				} catch (Exception e) {
-					return false;
-				}
-			
-		}
-		return false;
+		return DateUtilities.isDate(string);
 	}
 	
 }
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.collections;
+
+/**
+ * Estimates the number of distinct strings in a stream (the HyperLogLog algorithm of Flajolet et al.), using a fixed
+ * amount of memory of 2^precision bytes.
+ *
+ * <p>With the default precision of 12 the sketch uses 4 KB, and the relative standard error of the estimate is about
+ * 1.6%. Small cardinalities are estimated by linear counting, which is close to exact.
+ */
+public class HyperLogLog {
+	public static final int	DEFAULT_PRECISION	= 12;
+
+	private final int		precision;
+	private final byte[]	registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision number of bits of the hash used to select a register, between 4 and 18
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException("Precision must be between 4 and 18, not " + precision);
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public void add(CharSequence value) {
+		long hash = hash(value);
+		int register = (int) (hash >>> (64 - precision));
+		// Position of the first 1 bit in the remaining bits. The marker bit limits the rank when all bits are 0
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if (rank > registers[register])
+			registers[register] = (byte) rank;
+	}
+
+	/**
+	 * Adds all values of the other sketch to this one. Both sketches must have the same precision.
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Cannot merge sketches of precision " + precision + " and " + other.precision);
+		for (int i = 0; i < registers.length; i++)
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+	}
+
+	/**
+	 * Returns the estimated number of distinct values added
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1d / (1L << register);
+			if (register == 0)
+				zeros++;
+		}
+		double estimate = alpha(m) * m * m / sum;
+		if (estimate <= 2.5 * m && zeros != 0)
+			estimate = m * Math.log(m / (double) zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Returns the relative standard error of the estimate
+	 */
+	public double getRelativeStandardError() {
+		return 1.04 / Math.sqrt(registers.length);
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Returns a copy of the registers, from which the sketch can be restored with {@link #fromByteArray(byte[])}.
+	 */
+	public byte[] toByteArray() {
+		return registers.clone();
+	}
+
+	/**
+	 * Restores a sketch from its registers, as returned by {@link #toByteArray()}.
+	 */
+	public static HyperLogLog fromByteArray(byte[] registers) {
+		HyperLogLog sketch = new HyperLogLog(Integer.numberOfTrailingZeros(registers.length));
+		if (sketch.registers.length != registers.length)
+			throw new IllegalArgumentException("The number of registers must be a power of 2, not " + registers.length);
+		System.arraycopy(registers, 0, sketch.registers, 0, registers.length);
+		return sketch;
+	}
+
+	private static double alpha(int m) {
+		switch (m) {
+			case 16:
+				return 0.673;
+			case 32:
+				return 0.697;
+			case 64:
+				return 0.709;
+			default:
+				return 0.7213 / (1 + 1.079 / m);
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+	 */
+	private static long hash(CharSequence value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Counts the most frequent keys in a stream using at most a fixed number of counters (the Space-Saving algorithm of
+ * Metwally, Agrawal and El Abbadi).
+ *
+ * <p>When a key is seen that has no counter and all counters are in use, the counter with the lowest count is taken
+ * over by the new key. The count of a tracked key is therefore an upper bound of its true count, which is at least the
+ * count minus the error of that key. Any key that is not tracked occurred at most {@link #getMaxError()} times.
+ */
+public class SpaceSavingCounter {
+
+	private final int					capacity;
+	private final Map<String, Counter>	key2counter;
+	// Min-heap on count, so the counter to take over is always at the top
+	private final Counter[]				heap;
+	private int							size	= 0;
+	private long						total	= 0;
+
+	public SpaceSavingCounter(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		key2counter = new HashMap<>(this.capacity * 4 / 3 + 1);
+		heap = new Counter[this.capacity];
+	}
+
+	public boolean add(CharSequence key) {
+		return add(key, 1);
+	}
+
+	/**
+	 * Adds inc to the count of the key, taking over the counter with the lowest count if the key is not tracked and
+	 * there is no free counter.
+	 *
+	 * @return true if the key was not tracked before
+	 */
+	public boolean add(CharSequence key, int inc) {
+		total += inc;
+		String string = key.toString();
+		Counter counter = key2counter.get(string);
+		if (counter != null) {
+			counter.count += inc;
+			siftDown(counter.position);
+			return false;
+		}
+		if (size < capacity) {
+			counter = new Counter();
+			counter.key = string;
+			counter.count = inc;
+			counter.position = size;
+			heap[size++] = counter;
+			siftUp(counter.position);
+		} else {
+			counter = heap[0];
+			key2counter.remove(counter.key);
+			counter.key = string;
+			counter.error = counter.count;
+			counter.count += inc;
+			siftDown(0);
+		}
+		key2counter.put(string, counter);
+		return true;
+	}
+
+	/**
+	 * Adds a counter with the given count and error, for instance to restore the counters of another instance. The key
+	 * must not be tracked yet, and there must be a free counter.
+	 */
+	public void addCounter(String key, int count, int error) {
+		if (size == capacity || key2counter.containsKey(key))
+			throw new IllegalStateException("Cannot add a counter for " + key);
+		total += count;
+		Counter counter = new Counter();
+		counter.key = key;
+		counter.count = count;
+		counter.error = error;
+		counter.position = size;
+		heap[size++] = counter;
+		siftUp(counter.position);
+		key2counter.put(key, counter);
+	}
+
+	/**
+	 * Returns the estimated count of the key. This is never less than the true count.
+	 */
+	public int getCount(CharSequence key) {
+		Counter counter = key2counter.get(key.toString());
+		if (counter != null)
+			return counter.count;
+		else
+			return getMaxError();
+	}
+
+	/**
+	 * Returns by how much the count of the key may be overestimated.
+	 */
+	public int getError(CharSequence key) {
+		Counter counter = key2counter.get(key.toString());
+		if (counter != null)
+			return counter.error;
+		else
+			return getMaxError();
+	}
+
+	/**
+	 * Returns the highest possible overestimation of any count, which is the lowest tracked count once all counters are
+	 * in use. It never exceeds the total count divided by the capacity.
+	 */
+	public int getMaxError() {
+		if (size < capacity)
+			return 0;
+		else
+			return heap[0].count;
+	}
+
+	/**
+	 * Returns the sum of all increments
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Calls the action for every tracked key with its estimated count.
+	 */
+	public void forEachCount(ObjIntConsumer<String> action) {
+		for (int i = 0; i < size; i++)
+			action.accept(heap[i].key, heap[i].count);
+	}
+
+	private void siftUp(int position) {
+		Counter counter = heap[position];
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (heap[parent].count <= counter.count)
+				break;
+			place(heap[parent], position);
+			position = parent;
+		}
+		place(counter, position);
+	}
+
+	private void siftDown(int position) {
+		Counter counter = heap[position];
+		int half = size >>> 1;
+		while (position < half) {
+			int child = 2 * position + 1;
+			if (child + 1 < size && heap[child + 1].count < heap[child].count)
+				child++;
+			if (counter.count <= heap[child].count)
+				break;
+			place(heap[child], position);
+			position = child;
+		}
+		place(counter, position);
+	}
+
+	private void place(Counter counter, int position) {
+		heap[position] = counter;
+		counter.position = position;
+	}
+
+	private static class Counter {
+		public String	key;
+		public int		count;
+		public int		error;
+		public int		position;
+	}
+}
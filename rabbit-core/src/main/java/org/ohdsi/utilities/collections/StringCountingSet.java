@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.collections;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Memory efficient alternative to {@link CountingSet} for counting strings.
+ *
+ * <p>Instead of a HashMap with one entry object and one Count object per key, this set uses open addressing over
+ * parallel int arrays. Keys are stored UTF-8 encoded in a single shared byte array, so no String object is kept per
+ * key. A key costs roughly 24 bytes plus its encoded length, compared to well over 100 bytes for a CountingSet.
+ *
+ * <p>Keys can be given as any {@link CharSequence}. A String is only created when keys are read back.
+ */
+public class StringCountingSet extends AbstractSet<String> {
+
+	private static final int	EMPTY		= -1;
+	private static final float	LOAD_FACTOR	= 0.6f;
+
+	private int[]				slots;
+	private int[]				hashes;
+	private int[]				offsets;
+	private int[]				lengths;
+	private int[]				counts;
+	private byte[]				arena;
+	private int					arenaSize;
+	private int					size;
+
+	// Encoded form of the key being looked up, reused to avoid allocating per lookup
+	private byte[]				scratch		= new byte[64];
+	private int					scratchLength;
+
+	public StringCountingSet() {
+		this(16);
+	}
+
+	public StringCountingSet(int capacity) {
+		init(Math.max(capacity, 4));
+	}
+
+	public StringCountingSet(StringCountingSet set) {
+		slots = set.slots.clone();
+		hashes = set.hashes.clone();
+		offsets = set.offsets.clone();
+		lengths = set.lengths.clone();
+		counts = set.counts.clone();
+		arena = Arrays.copyOf(set.arena, Math.max(set.arenaSize, 16));
+		arenaSize = set.arenaSize;
+		size = set.size;
+	}
+
+	private void init(int capacity) {
+		int tableSize = Integer.highestOneBit((int) (capacity / LOAD_FACTOR)) << 1;
+		slots = new int[tableSize];
+		Arrays.fill(slots, EMPTY);
+		hashes = new int[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		counts = new int[capacity];
+		arena = new byte[capacity * 8];
+		arenaSize = 0;
+		size = 0;
+	}
+
+	public int getCount(CharSequence key) {
+		int index = indexOf(key);
+		return index == EMPTY ? 0 : counts[index];
+	}
+
+	/**
+	 * Computes the sum of the counts
+	 */
+	public int getSum() {
+		int sum = 0;
+		for (int i = 0; i < size; i++)
+			sum += counts[i];
+		return sum;
+	}
+
+	/**
+	 * Returns the maximum count
+	 */
+	public int getMax() {
+		int max = 0;
+		for (int i = 0; i < size; i++)
+			max = Math.max(max, counts[i]);
+		return max;
+	}
+
+	/**
+	 * Returns the minimum count, or 0 if the set is empty
+	 */
+	public int getMin() {
+		if (size == 0)
+			return 0;
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++)
+			min = Math.min(min, counts[i]);
+		return min;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean contains(Object key) {
+		return key instanceof CharSequence && indexOf((CharSequence) key) != EMPTY;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public String next() {
+				if (index >= size)
+					throw new NoSuchElementException();
+				return decode(index++);
+			}
+		};
+	}
+
+	@Override
+	public boolean add(String key) {
+		return add(key, 1);
+	}
+
+	public boolean add(CharSequence key) {
+		return add(key, 1);
+	}
+
+	/**
+	 * Adds inc to the count of the key.
+	 *
+	 * @return true if the key was not in the set before
+	 */
+	public boolean add(CharSequence key, int inc) {
+		int hash = hash(key);
+		encode(key);
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != EMPTY) {
+			int index = slots[slot];
+			if (hashes[index] == hash && scratchEquals(index)) {
+				counts[index] += inc;
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = append(hash, inc);
+		if (size > slots.length * LOAD_FACTOR)
+			rehash(slots.length << 1);
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		init(16);
+	}
+
+	/**
+	 * Calls the action for every key with its count.
+	 */
+	public void forEachCount(ObjIntConsumer<String> action) {
+		for (int i = 0; i < size; i++)
+			action.accept(decode(i), counts[i]);
+	}
+
+	/**
+	 * Keep the n most frequent values, remove the rest
+	 *
+	 * @param n
+	 */
+	public void keepTopN(int n) {
+		if (size() < n)
+			return;
+
+		int[] keep = decliningCountOrder(n);
+		int[] oldHashes = hashes;
+		int[] oldOffsets = offsets;
+		int[] oldLengths = lengths;
+		int[] oldCounts = counts;
+		byte[] oldArena = arena;
+
+		init(Math.max(n, 4));
+		for (int index : keep) {
+			ensureEntryCapacity(oldLengths[index]);
+			System.arraycopy(oldArena, oldOffsets[index], arena, arenaSize, oldLengths[index]);
+			hashes[size] = oldHashes[index];
+			offsets[size] = arenaSize;
+			lengths[size] = oldLengths[index];
+			counts[size] = oldCounts[index];
+			arenaSize += oldLengths[index];
+			size++;
+		}
+		rehash(slots.length);
+	}
+
+	/**
+	 * Returns the indices of the n entries with the highest counts, highest count first. Ties are broken by insertion
+	 * order.
+	 */
+	private int[] decliningCountOrder(int n) {
+		long[] order = new long[size];
+		for (int i = 0; i < size; i++)
+			order[i] = ((long) (Integer.MAX_VALUE - counts[i]) << 32) | i;
+		Arrays.sort(order);
+		int[] indices = new int[Math.min(n, size)];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = (int) order[i];
+		return indices;
+	}
+
+	public void printCounts() {
+		for (int index : decliningCountOrder(size))
+			System.out.println(decode(index) + "\t" + counts[index]);
+	}
+
+	private int indexOf(CharSequence key) {
+		int hash = hash(key);
+		encode(key);
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != EMPTY) {
+			int index = slots[slot];
+			if (hashes[index] == hash && scratchEquals(index))
+				return index;
+			slot = (slot + 1) & mask;
+		}
+		return EMPTY;
+	}
+
+	private int append(int hash, int count) {
+		ensureEntryCapacity(scratchLength);
+		System.arraycopy(scratch, 0, arena, arenaSize, scratchLength);
+		hashes[size] = hash;
+		offsets[size] = arenaSize;
+		lengths[size] = scratchLength;
+		counts[size] = count;
+		arenaSize += scratchLength;
+		return size++;
+	}
+
+	private void ensureEntryCapacity(int keyLength) {
+		if (size == counts.length) {
+			int capacity = size + (size >> 1) + 1;
+			hashes = Arrays.copyOf(hashes, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		if (arenaSize + keyLength > arena.length) {
+			long capacity = Math.max(arenaSize + (long) keyLength, arena.length + ((long) arena.length >> 1) + 16);
+			arena = Arrays.copyOf(arena, (int) Math.min(capacity, Integer.MAX_VALUE - 8));
+		}
+	}
+
+	private void rehash(int tableSize) {
+		slots = new int[tableSize];
+		Arrays.fill(slots, EMPTY);
+		int mask = tableSize - 1;
+		for (int index = 0; index < size; index++) {
+			int slot = hashes[index] & mask;
+			while (slots[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			slots[slot] = index;
+		}
+	}
+
+	private boolean scratchEquals(int index) {
+		if (lengths[index] != scratchLength)
+			return false;
+		int offset = offsets[index];
+		for (int i = 0; i < scratchLength; i++)
+			if (arena[offset + i] != scratch[i])
+				return false;
+		return true;
+	}
+
+	private static int hash(CharSequence key) {
+		// Same as String.hashCode(), which is cached for String keys
+		int hash;
+		if (key instanceof String) {
+			hash = key.hashCode();
+		} else {
+			hash = 0;
+			for (int i = 0; i < key.length(); i++)
+				hash = 31 * hash + key.charAt(i);
+		}
+		// Spread the bits, as linear probing is sensitive to clustering
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * UTF-8 encodes the key into the scratch buffer.
+	 */
+	private void encode(CharSequence key) {
+		int length = key.length();
+		if (scratch.length < length * 3)
+			scratch = new byte[length * 3];
+		int position = 0;
+		for (int i = 0; i < length; i++) {
+			char ch = key.charAt(i);
+			if (ch < 0x80) {
+				scratch[position++] = (byte) ch;
+			} else if (ch < 0x800) {
+				scratch[position++] = (byte) (0xC0 | (ch >> 6));
+				scratch[position++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(ch, key.charAt(++i));
+				scratch[position++] = (byte) (0xF0 | (codePoint >> 18));
+				scratch[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				scratch[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				scratch[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				scratch[position++] = (byte) (0xE0 | (ch >> 12));
+				scratch[position++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				scratch[position++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+		scratchLength = position;
+	}
+
+	private String decode(int index) {
+		int position = offsets[index];
+		int end = position + lengths[index];
+		char[] chars = new char[lengths[index]];
+		int length = 0;
+		while (position < end) {
+			int b = arena[position++] & 0xFF;
+			if (b < 0x80) {
+				chars[length++] = (char) b;
+			} else if (b < 0xE0) {
+				chars[length++] = (char) (((b & 0x1F) << 6) | (arena[position++] & 0x3F));
+			} else if (b < 0xF0) {
+				chars[length++] = (char) (((b & 0x0F) << 12) | ((arena[position++] & 0x3F) << 6) | (arena[position++] & 0x3F));
+			} else {
+				int codePoint = ((b & 0x07) << 18) | ((arena[position++] & 0x3F) << 12) | ((arena[position++] & 0x3F) << 6)
+						| (arena[position++] & 0x3F);
+				length += Character.toChars(codePoint, chars, length);
+			}
+		}
+		return new String(chars, 0, length);
+	}
+}
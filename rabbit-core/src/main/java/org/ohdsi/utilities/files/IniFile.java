@@ -43,4 +43,12 @@ public class IniFile {
 		else
 			return value;
 	}
+
+	public String get(String fieldName, String defaultValue) {
+		String value = get(fieldName);
+		if (value.length() == 0)
+			return defaultValue;
+		else
+			return value;
+	}
 }
@@ -39,7 +39,7 @@ import org.ohdsi.utilities.files.QuickAndDirtyXlsxReader.Sheet;
 public class QuickAndDirtyXlsxReader extends ArrayList<Sheet> {
 
 	private static final long serialVersionUID = 25124428448185386L;
-	private static final Pattern DOUBLE_IGNORE_PATTERN = Pattern.compile("[<>= ]+");
+	private static final Pattern DOUBLE_IGNORE_PATTERN = Pattern.compile("[<>=~ ]+|\\(.*\\)");
 
 	private List<String> sharedStrings = new ArrayList<>();
 
@@ -590,7 +590,7 @@ public class QuickAndDirtyXlsxReader extends ArrayList<Sheet> {
 		public Double getDoubleByHeaderName(String fieldName) {
 			String value = getStringByHeaderName(fieldName);
 			if (value != null) {
-				// Ignore operators and spaces from double values
+				// Ignore operators, spaces and error margins from double values
 				value = DOUBLE_IGNORE_PATTERN.matcher(value).replaceAll("");
 				return Double.parseDouble(value);
 			} else {
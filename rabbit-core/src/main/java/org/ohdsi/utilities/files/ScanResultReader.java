@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.files;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.ohdsi.utilities.collections.Pair;
+
+/**
+ * Reads a file written by {@link ScanResultWriter}. Opening the file only reads its directory: the table overview and
+ * the metadata. The field overview and value counts of a table are read when requested, and only the requested column
+ * or field is read from disk.
+ *
+ * <p>Cells are returned as Double for numbers, String for text, or null for empty cells.
+ */
+public class ScanResultReader implements Closeable {
+	private static final Pattern		DOUBLE_IGNORE_PATTERN	= Pattern.compile("[<>=~ ]+|\\(.*\\)");
+
+	private final RandomAccessFile		file;
+	private List<String>				fieldOverviewHeader;
+	private List<String>				tableOverviewHeader;
+	private long[]						tableOffsets;
+	private List<List<Object>>			tableOverviewRows;
+	private List<Pair<String, Object>>	metadata;
+	private TableHeader[]				tableHeaders;
+
+	public ScanResultReader(String filename) {
+		try {
+			file = new RandomAccessFile(filename, "r");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			if (file.length() < 20 || file.readInt() != ScanResultWriter.MAGIC)
+				throw new RuntimeException(filename + " is not a scan result file");
+			int version = file.readInt();
+			if (version != ScanResultWriter.VERSION)
+				throw new RuntimeException("Unsupported version " + version + " of scan result file " + filename);
+			file.seek(file.length() - 12);
+			long directoryOffset = file.readLong();
+			if (file.readInt() != ScanResultWriter.MAGIC)
+				throw new RuntimeException("Scan result file " + filename + " is incomplete");
+			readDirectory(directoryOffset);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+		}
+	}
+
+	public List<String> getFieldOverviewHeader() {
+		return fieldOverviewHeader;
+	}
+
+	public List<String> getTableOverviewHeader() {
+		return tableOverviewHeader;
+	}
+
+	public int getTableCount() {
+		return tableOffsets.length;
+	}
+
+	public List<Object> getTableOverviewRow(int table) {
+		return tableOverviewRows.get(table);
+	}
+
+	/**
+	 * Get the metadata of the scan, in the order it was added. A key can occur more than once.
+	 */
+	public List<Pair<String, Object>> getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * Get the number of fields of the table.
+	 */
+	public int getFieldCount(int table) {
+		return getTableHeader(table).fieldCount;
+	}
+
+	/**
+	 * Get the cells of all fields of the table in one column of the field overview.
+	 *
+	 * @param columnName
+	 *            the name of the column in the header of the field overview
+	 */
+	public List<Object> getFieldOverviewColumn(int table, String columnName) {
+		int column = fieldOverviewHeader.indexOf(columnName);
+		if (column == -1)
+			throw new RuntimeException("Column \"" + columnName + "\" not found");
+		TableHeader header = getTableHeader(table);
+		List<Object> cells = new ArrayList<>(header.fieldCount);
+		try {
+			DataInputStream in = openAt(header.offsets[column]);
+			for (int field = 0; field < header.fieldCount; field++)
+				cells.add(readCell(in));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return cells;
+	}
+
+	/**
+	 * Get the rows of the field overview of the table, one per field.
+	 */
+	public List<List<Object>> getFieldOverviewRows(int table) {
+		TableHeader header = getTableHeader(table);
+		List<List<Object>> rows = new ArrayList<>(header.fieldCount);
+		for (int field = 0; field < header.fieldCount; field++)
+			rows.add(new ArrayList<>(fieldOverviewHeader.size()));
+		try {
+			// The columns are stored one after the other, so they can be read in one pass
+			DataInputStream in = openAt(header.offsets[0]);
+			for (int column = 0; column < fieldOverviewHeader.size(); column++)
+				for (List<Object> row : rows)
+					row.add(readCell(in));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns whether the values of the fields of the table were counted.
+	 */
+	public boolean hasValueCounts(int table) {
+		return getTableHeader(table).valueCountLabels != null;
+	}
+
+	/**
+	 * Get what the value counts of the field are, for instance "Frequency".
+	 */
+	public String getValueCountLabel(int table, int field) {
+		return getTableHeader(table).valueCountLabels[field];
+	}
+
+	/**
+	 * Get the values of the field with their counts, as they appear in the scan report.
+	 */
+	public List<Pair<String, Integer>> getValueCounts(int table, int field) {
+		TableHeader header = getTableHeader(table);
+		if (header.valueCountLabels == null)
+			throw new RuntimeException("The values of table " + table + " were not counted");
+		try {
+			DataInputStream in = openAt(header.offsets[fieldOverviewHeader.size() + field]);
+			int count = in.readInt();
+			List<String> values = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				values.add(readString(in));
+			List<Pair<String, Integer>> valueCounts = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				valueCounts.add(new Pair<>(values.get(i), in.readInt()));
+			return valueCounts;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Converts a cell to a number. Estimates written as text, such as "~ 1000 (± 2.0%)", are converted like the scan
+	 * report does: operators, spaces and error margins are ignored.
+	 *
+	 * @return the number, or null if the cell is empty or not a number
+	 */
+	public static Double getDouble(Object cell) {
+		if (cell instanceof Double)
+			return ((Double) cell).isNaN() ? null : (Double) cell;
+		if (cell == null)
+			return null;
+		try {
+			return Double.parseDouble(DOUBLE_IGNORE_PATTERN.matcher(cell.toString()).replaceAll(""));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Converts a cell to an integer, see {@link #getDouble(Object)}.
+	 */
+	public static Integer getInt(Object cell) {
+		Double value = getDouble(cell);
+		return value == null ? null : value.intValue();
+	}
+
+	/**
+	 * Converts a cell to text, returning an empty string for an empty cell.
+	 */
+	public static String getString(Object cell) {
+		if (cell == null)
+			return "";
+		if (cell instanceof Double && ((Double) cell) == Math.rint((Double) cell) && !((Double) cell).isInfinite())
+			return Long.toString(((Double) cell).longValue());
+		return cell.toString();
+	}
+
+	@Override
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void readDirectory(long offset) throws IOException {
+		DataInputStream in = openAt(offset);
+		fieldOverviewHeader = readStrings(in);
+		tableOverviewHeader = readStrings(in);
+		int tableCount = in.readInt();
+		tableOffsets = new long[tableCount];
+		tableOverviewRows = new ArrayList<>(tableCount);
+		for (int table = 0; table < tableCount; table++) {
+			tableOffsets[table] = in.readLong();
+			List<Object> row = new ArrayList<>(tableOverviewHeader.size());
+			for (int column = 0; column < tableOverviewHeader.size(); column++)
+				row.add(readCell(in));
+			tableOverviewRows.add(row);
+		}
+		int metadataCount = in.readInt();
+		metadata = new ArrayList<>(metadataCount);
+		for (int i = 0; i < metadataCount; i++)
+			metadata.add(new Pair<>(readString(in), readCell(in)));
+		tableHeaders = new TableHeader[tableCount];
+	}
+
+	private synchronized TableHeader getTableHeader(int table) {
+		if (tableHeaders[table] == null) {
+			try {
+				DataInputStream in = openAt(tableOffsets[table]);
+				TableHeader header = new TableHeader();
+				header.fieldCount = in.readInt();
+				boolean hasValueCounts = in.readBoolean();
+				header.offsets = new long[fieldOverviewHeader.size() + (hasValueCounts ? header.fieldCount : 0)];
+				for (int i = 0; i < header.offsets.length; i++)
+					header.offsets[i] = in.readLong();
+				if (hasValueCounts) {
+					header.valueCountLabels = new String[header.fieldCount];
+					for (int field = 0; field < header.fieldCount; field++)
+						header.valueCountLabels[field] = readString(in);
+				}
+				tableHeaders[table] = header;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return tableHeaders[table];
+	}
+
+	/**
+	 * Opens a stream reading from the given position. The stream reads from the file itself, so it is only valid until
+	 * the next seek.
+	 */
+	private DataInputStream openAt(long offset) throws IOException {
+		file.seek(offset);
+		return new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel()), 65536));
+	}
+
+	private static Object readCell(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == ScanResultWriter.NUMBER)
+			return in.readDouble();
+		else if (type == ScanResultWriter.TEXT)
+			return readString(in);
+		else
+			return null;
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> values = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			values.add(readString(in));
+		return values;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static class TableHeader {
+		int			fieldCount;
+		// The offsets of the columns of the field overview, followed by those of the value counts of every field
+		long[]		offsets;
+		String[]	valueCountLabels;
+	}
+}
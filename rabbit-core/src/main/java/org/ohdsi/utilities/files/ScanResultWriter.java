@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ohdsi.utilities.collections.Pair;
+
+/**
+ * Writes the results of a scan in a compact binary file, which {@link ScanResultReader} can read one table, column or
+ * field at a time. The file holds the same cells as the sheets of the Excel scan report: numbers, text and empty
+ * cells.
+ *
+ * <p>Tables are written as they are added, each in a block that starts with the offsets of its parts:
+ * <ul>
+ *     <li>the field overview, stored column by column</li>
+ *     <li>per field, the value counts: the values, followed by their counts</li>
+ * </ul>
+ * The file ends with a directory holding the headers of the overviews, the table overview row and block offset of
+ * every table, and the metadata of the scan, followed by the offset of the directory.
+ */
+public class ScanResultWriter implements Closeable {
+	public static final String	EXTENSION	= ".scanresult";
+
+	static final int			MAGIC		= 0x57525352;	// "WRSR"
+	static final int			VERSION		= 1;
+
+	static final byte			NUMBER		= 'D';
+	static final byte			TEXT		= 'S';
+	static final byte			EMPTY		= 'N';
+
+	private final File					file;
+	private final DataOutputStream		out;
+	private boolean						closed				= false;
+	private long						position;
+	private final List<String>			fieldOverviewHeader;
+	private final List<String>			tableOverviewHeader;
+	private final List<List<Object>>	tableOverviewRows	= new ArrayList<>();
+	private final List<Long>			tableOffsets		= new ArrayList<>();
+	private final List<Pair<String, Object>>	metadata	= new ArrayList<>();
+
+	/**
+	 * @param fieldOverviewHeader
+	 *            the names of the columns of the field overview
+	 * @param tableOverviewHeader
+	 *            the names of the columns of the table overview
+	 */
+	public ScanResultWriter(String filename, List<String> fieldOverviewHeader, List<String> tableOverviewHeader) {
+		this.fieldOverviewHeader = new ArrayList<>(fieldOverviewHeader);
+		this.tableOverviewHeader = new ArrayList<>(tableOverviewHeader);
+		file = new File(filename);
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			position = 8;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds a table. The table is written right away, so only the table overview rows are kept in memory.
+	 *
+	 * @param tableOverviewRow
+	 *            the cells of the table in the table overview. Cells are numbers, text or null
+	 * @param fieldOverviewRows
+	 *            the cells of every field in the field overview
+	 * @param valueCountLabels
+	 *            per field, what the counts are, for instance "Frequency". Null if the values were not counted
+	 * @param valueCounts
+	 *            per field, the values with their counts, in the order to report them. Null if the values were not
+	 *            counted
+	 */
+	public synchronized void addTable(List<Object> tableOverviewRow, List<List<Object>> fieldOverviewRows, List<String> valueCountLabels,
+			List<List<Pair<String, Integer>>> valueCounts) {
+		try {
+			int fieldCount = fieldOverviewRows.size();
+			List<byte[]> parts = new ArrayList<>();
+			for (int column = 0; column < fieldOverviewHeader.size(); column++) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream partOut = new DataOutputStream(bytes);
+				for (List<Object> row : fieldOverviewRows)
+					writeCell(partOut, column < row.size() ? row.get(column) : null);
+				partOut.flush();
+				parts.add(bytes.toByteArray());
+			}
+			ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+			DataOutputStream labelOut = new DataOutputStream(labelBytes);
+			if (valueCounts != null) {
+				for (int field = 0; field < fieldCount; field++) {
+					writeString(labelOut, valueCountLabels.get(field));
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream partOut = new DataOutputStream(bytes);
+					List<Pair<String, Integer>> counts = valueCounts.get(field);
+					partOut.writeInt(counts.size());
+					for (Pair<String, Integer> count : counts)
+						writeString(partOut, count.getItem1());
+					for (Pair<String, Integer> count : counts)
+						partOut.writeInt(count.getItem2());
+					partOut.flush();
+					parts.add(bytes.toByteArray());
+				}
+			}
+			labelOut.flush();
+
+			// The header of the block: the field count, the offsets of all parts, and the labels of the value counts
+			long offset = position + 4 + 1 + 8L * parts.size() + labelBytes.size();
+			out.writeInt(fieldCount);
+			out.writeBoolean(valueCounts != null);
+			for (byte[] part : parts) {
+				out.writeLong(offset);
+				offset += part.length;
+			}
+			labelBytes.writeTo(out);
+			for (byte[] part : parts)
+				out.write(part);
+
+			tableOffsets.add(position);
+			tableOverviewRows.add(new ArrayList<>(tableOverviewRow));
+			position = offset;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds an item of the metadata of the scan, such as a setting.
+	 */
+	public synchronized void addMetadata(String key, Object value) {
+		metadata.add(new Pair<>(key, value));
+	}
+
+	/**
+	 * Writes the directory of the file, and closes it.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			long directoryOffset = position;
+			writeStrings(out, fieldOverviewHeader);
+			writeStrings(out, tableOverviewHeader);
+			out.writeInt(tableOffsets.size());
+			for (int table = 0; table < tableOffsets.size(); table++) {
+				out.writeLong(tableOffsets.get(table));
+				List<Object> row = tableOverviewRows.get(table);
+				for (int column = 0; column < tableOverviewHeader.size(); column++)
+					writeCell(out, column < row.size() ? row.get(column) : null);
+			}
+			out.writeInt(metadata.size());
+			for (Pair<String, Object> item : metadata) {
+				writeString(out, item.getItem1());
+				writeCell(out, item.getItem2());
+			}
+			out.writeLong(directoryOffset);
+			out.writeInt(MAGIC);
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Closes the file without writing its directory, and deletes it, so a scan that failed does not leave a file that
+	 * looks like a scan result. Does nothing if the file was already closed by {@link #close()}.
+	 */
+	public synchronized void abort() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// The file is deleted anyway
+		}
+		file.delete();
+	}
+
+	private static void writeCell(DataOutputStream out, Object value) throws IOException {
+		if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+			out.writeByte(NUMBER);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value != null) {
+			out.writeByte(TEXT);
+			writeString(out, value.toString());
+		} else {
+			out.writeByte(EMPTY);
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values)
+			writeString(out, value);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -101,6 +101,7 @@ public class RabbitInAHatMain implements ResizeListener {
 	private final static FileFilter FILE_FILTER_CSV = new FileNameExtensionFilter("Text Files (*.csv)", "csv");
 	private final static FileFilter FILE_FILTER_R = new FileNameExtensionFilter("R script (*.r)", "r");
 	private final static FileFilter FILE_FILTER_XLSX = new FileNameExtensionFilter("XLSX files (*.xlsx)", "xlsx");
+	private final static FileFilter FILE_FILTER_SCAN_RESULT = new FileNameExtensionFilter("Scan result files (*.scanresult)", "scanresult");
 
 	private JFrame					frame;
 	private JScrollPane				scrollPane1;
@@ -564,7 +565,7 @@ public class RabbitInAHatMain implements ResizeListener {
 	}
 
 	private void doOpenScanReport() {
-		String filename = chooseOpenPath(FILE_FILTER_XLSX);
+		String filename = chooseOpenPath(FILE_FILTER_XLSX, FILE_FILTER_SCAN_RESULT);
 		if (filename != null) {
 			doOpenScanReport(filename);
 		}
@@ -62,6 +62,7 @@ import javax.swing.JPanel;
 import javax.swing.JPasswordField;
 import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
@@ -71,12 +72,17 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import org.apache.commons.csv.CSVFormat;
 import org.ohdsi.databases.DbType;
 import org.ohdsi.databases.RichConnection;
+import org.ohdsi.databases.SchemaMetadata;
 import org.ohdsi.utilities.DirectoryUtilities;
 import org.ohdsi.utilities.StringUtilities;
 import org.ohdsi.utilities.Version;
 import org.ohdsi.utilities.files.IniFile;
 import org.ohdsi.whiteRabbit.fakeDataGenerator.FakeDataGenerator;
 import org.ohdsi.whiteRabbit.scan.SourceDataScan;
+import org.ohdsi.whiteRabbit.scan.FileSamplingMethod;
+import org.ohdsi.whiteRabbit.scan.QuantileMethod;
+import org.ohdsi.whiteRabbit.scan.RowCountMode;
+import org.ohdsi.whiteRabbit.scan.ValueCountingStrategy;
 
 /**
  * This is the WhiteRabbit main class
@@ -96,6 +102,7 @@ public class WhiteRabbitMain implements ActionListener {
 	private JCheckBox 			calculateNumericStats;
 	private JComboBox<String>	numericStatsSampleSize;
 	private JSpinner			scanMinCellCount;
+	private JSpinner			scanThreadCount;
 	private JSpinner			generateRowCount;
 	private JComboBox<String>	sourceType;
 	private JComboBox<String>	targetType;
@@ -106,6 +113,7 @@ public class WhiteRabbitMain implements ActionListener {
 	private JTextField			sourceDelimiterField;
 	private JComboBox<String> 	targetCSVFormat;
 	private JCheckBox		 	doUniformSampling;
+	private JTextField			joinKeyField;
 	private JTextField			sourceServerField;
 	private JTextField			sourceUserField;
 	private JTextField			sourcePasswordField;
@@ -116,6 +124,8 @@ public class WhiteRabbitMain implements ActionListener {
 	private boolean				sourceIsFiles					= true;
 	private boolean				sourceIsSas						= false;
 	private boolean				targetIsFiles					= false;
+	private SchemaMetadata		schemaMetadata					= null;
+	private String				schemaMetadataSource			= null;
 
 	private List<JComponent>	componentsToDisableWhenRunning	= new ArrayList<JComponent>();
 
@@ -124,8 +134,8 @@ public class WhiteRabbitMain implements ActionListener {
 	}
 
 	public WhiteRabbitMain(String[] args) {
-		if (args.length == 2 && args[0].equalsIgnoreCase("-ini"))
-			launchCommandLine(args[1]);
+		if ((args.length == 2 || args.length == 3) && args[0].equalsIgnoreCase("-ini"))
+			launchCommandLine(args[1], args.length == 3 && args[2].equalsIgnoreCase("--resume"));
 		else {
 			frame = new JFrame("White Rabbit");
 
@@ -150,7 +160,7 @@ public class WhiteRabbitMain implements ActionListener {
 		}
 	}
 
-	private void launchCommandLine(String iniFileName) {
+	private void launchCommandLine(String iniFileName, boolean resume) {
 		IniFile iniFile = new IniFile(iniFileName);
 		DbSettings dbSettings = new DbSettings();
 		if (iniFile.get("DATA_TYPE").equalsIgnoreCase("Delimited text files")) {
@@ -212,9 +222,11 @@ public class WhiteRabbitMain implements ActionListener {
 				dbSettings.domain = dbSettings.database;
 			}
 		}
+		SchemaMetadata schemaMetadata = null;
 		if (iniFile.get("TABLES_TO_SCAN").equalsIgnoreCase("*")) {
 			try (RichConnection connection = new RichConnection(dbSettings.server, dbSettings.domain, dbSettings.user, dbSettings.password, dbSettings.dbType)) {
-				dbSettings.tables.addAll(connection.getTableNames(dbSettings.database));
+				schemaMetadata = connection.getSchemaMetadata(dbSettings.database);
+				dbSettings.tables.addAll(schemaMetadata.getTableNames());
 			}
 		} else {
 			for (String table : iniFile.get("TABLES_TO_SCAN").split(",")) {
@@ -231,6 +243,27 @@ public class WhiteRabbitMain implements ActionListener {
 		int maxValues = Integer.parseInt(iniFile.get("MAX_DISTINCT_VALUES"));
 		boolean calculateNumericStats = iniFile.get("CALCULATE_NUMERIC_STATS").equalsIgnoreCase("yes");
 		int numericStatsSamplerSize = Integer.parseInt(iniFile.get("NUMERIC_STATS_SAMPLER_SIZE"));
+		QuantileMethod quantileMethod = QuantileMethod.valueOf(iniFile.get("QUANTILE_METHOD", "RESERVOIR").toUpperCase());
+		boolean extraPercentiles = iniFile.get("EXTRA_PERCENTILES").equalsIgnoreCase("yes");
+		int threadCount = Integer.parseInt(iniFile.get("SCAN_THREADS", "1"));
+		int columnThreadCount = Integer.parseInt(iniFile.get("COLUMN_THREADS", "1"));
+		int csvChunkCount = Integer.parseInt(iniFile.get("CSV_CHUNKS", "1"));
+		FileSamplingMethod fileSamplingMethod = FileSamplingMethod.valueOf(iniFile.get("FILE_SAMPLING", "FIRST_ROWS").toUpperCase());
+		String samplingKey = iniFile.get("SAMPLING_KEY", "");
+		double samplingKeyFraction = Double.parseDouble(iniFile.get("SAMPLING_KEY_FRACTION", "0.01"));
+		RowCountMode rowCountMode = RowCountMode.valueOf(iniFile.get("ROW_COUNT", "EXACT").toUpperCase());
+		ValueCountingStrategy valueCountingStrategy = ValueCountingStrategy.valueOf(iniFile.get("VALUE_COUNTING", "TRIM").toUpperCase());
+		int fetchSize = Integer.parseInt(iniFile.get("FETCH_SIZE", Integer.toString(RichConnection.DEFAULT_FETCH_SIZE)));
+		boolean pushDownProfiling = iniFile.get("PUSH_DOWN_PROFILING").equalsIgnoreCase("yes");
+		resume |= iniFile.get("RESUME", "no").equalsIgnoreCase("yes");
+		boolean incremental = iniFile.get("INCREMENTAL", "no").equalsIgnoreCase("yes");
+		boolean appendOnly = iniFile.get("APPEND_ONLY", "no").equalsIgnoreCase("yes");
+		String watermarkColumn = iniFile.get("WATERMARK_COLUMN", "");
+		boolean xlsxReport = iniFile.get("XLSX_REPORT", "yes").equalsIgnoreCase("yes");
+		List<String> dateFormats = new ArrayList<>();
+		for (String dateFormat : iniFile.get("DATE_FORMATS", "").split(";"))
+			if (!dateFormat.trim().isEmpty())
+				dateFormats.add(dateFormat.trim());
 
 		sourceDataScan.setSampleSize(maxRows);
 		sourceDataScan.setScanValues(scanValues);
@@ -238,6 +271,24 @@ public class WhiteRabbitMain implements ActionListener {
 		sourceDataScan.setMaxValues(maxValues);
 		sourceDataScan.setCalculateNumericStats(calculateNumericStats);
 		sourceDataScan.setNumStatsSamplerSize(numericStatsSamplerSize);
+		sourceDataScan.setQuantileMethod(quantileMethod);
+		sourceDataScan.setExtraPercentiles(extraPercentiles);
+		sourceDataScan.setThreadCount(threadCount);
+		sourceDataScan.setColumnThreadCount(columnThreadCount);
+		sourceDataScan.setCsvChunkCount(csvChunkCount);
+		sourceDataScan.setFileSamplingMethod(fileSamplingMethod);
+		sourceDataScan.setKeySampling(samplingKey, samplingKeyFraction);
+		sourceDataScan.setRowCountMode(rowCountMode);
+		sourceDataScan.setValueCountingStrategy(valueCountingStrategy);
+		sourceDataScan.setFetchSize(fetchSize);
+		sourceDataScan.setPushDownProfiling(pushDownProfiling);
+		sourceDataScan.setDateFormats(dateFormats);
+		sourceDataScan.setSchemaMetadata(schemaMetadata);
+		sourceDataScan.setResume(resume);
+		sourceDataScan.setIncremental(incremental);
+		sourceDataScan.setAppendOnly(appendOnly);
+		sourceDataScan.setWatermarkColumn(watermarkColumn);
+		sourceDataScan.setXlsxReport(xlsxReport);
 		sourceDataScan.process(dbSettings, iniFile.get("WORKING_FOLDER") + "/ScanReport.xlsx");
 	}
 
@@ -484,6 +535,12 @@ public class WhiteRabbitMain implements ActionListener {
 		scanOptionsLowerPanel.add(numericStatsSampleSize);
 		scanOptionsLowerPanel.add(Box.createHorizontalGlue());
 
+		scanOptionsLowerPanel.add(new JLabel("Tables in parallel "));
+		scanThreadCount = new JSpinner(new SpinnerNumberModel(1, 1, 64, 1));
+		scanThreadCount.setToolTipText("Number of tables scanned at the same time. Each table being scanned uses its own database connection");
+		scanOptionsLowerPanel.add(scanThreadCount);
+		scanOptionsLowerPanel.add(Box.createHorizontalGlue());
+
 		southPanel.add(scanOptionsLowerPanel);
 
 		southPanel.add(Box.createVerticalStrut(3));
@@ -620,6 +677,11 @@ public class WhiteRabbitMain implements ActionListener {
 		generateRowCount = new JSpinner();
 		generateRowCount.setValue(10000);
 		fakeDataButtonPanel.add(generateRowCount);
+		fakeDataButtonPanel.add(new JLabel("Join key"));
+		joinKeyField = new JTextField(10);
+		joinKeyField.setToolTipText("Field (for instance person_id) to take from the same set of values in all tables, so the tables can be joined on it");
+		joinKeyField.setMaximumSize(joinKeyField.getPreferredSize());
+		fakeDataButtonPanel.add(joinKeyField);
 		fakeDataButtonPanel.add(Box.createHorizontalGlue());
 
 		JButton testConnectionButton = new JButton("Test connection");
@@ -725,17 +787,30 @@ public class WhiteRabbitMain implements ActionListener {
 	private void addAllTables() {
 		DbSettings sourceDbSettings = getSourceDbSettings();
 		if (sourceDbSettings != null) {
-			RichConnection connection = new RichConnection(sourceDbSettings.server, sourceDbSettings.domain, sourceDbSettings.user, sourceDbSettings.password,
-					sourceDbSettings.dbType);
-			for (String table : connection.getTableNames(sourceDbSettings.database)) {
+			for (String table : loadSchemaMetadata(sourceDbSettings).getTableNames()) {
 				if (!tables.contains(table))
 					tables.add((String) table);
 				tableList.setListData(tables);
 			}
-			connection.close();
 		}
 	}
 
+	/**
+	 * Loads the tables and columns of the source database, which are kept so the scan does not have to load them again.
+	 */
+	private SchemaMetadata loadSchemaMetadata(DbSettings dbSettings) {
+		try (RichConnection connection = new RichConnection(dbSettings.server, dbSettings.domain, dbSettings.user, dbSettings.password,
+				dbSettings.dbType)) {
+			schemaMetadata = connection.getSchemaMetadata(dbSettings.database);
+			schemaMetadataSource = describeSource(dbSettings);
+		}
+		return schemaMetadata;
+	}
+
+	private String describeSource(DbSettings dbSettings) {
+		return dbSettings.dbType.getTypeName() + "|" + dbSettings.server + "|" + dbSettings.domain + "|" + dbSettings.user + "|" + dbSettings.database;
+	}
+
 	private void pickTables() {
 		DbSettings sourceDbSettings = getSourceDbSettings();
 		if (sourceDbSettings != null) {
@@ -761,9 +836,7 @@ public class WhiteRabbitMain implements ActionListener {
 
 				}
 			} else if (sourceDbSettings.sourceType == DbSettings.SourceType.DATABASE) {
-				RichConnection connection = new RichConnection(sourceDbSettings.server, sourceDbSettings.domain, sourceDbSettings.user,
-						sourceDbSettings.password, sourceDbSettings.dbType);
-				String tableNames = StringUtilities.join(connection.getTableNames(sourceDbSettings.database), "\t");
+				String tableNames = StringUtilities.join(loadSchemaMetadata(sourceDbSettings).getTableNames(), "\t");
 				if (tableNames.length() == 0) {
 					JOptionPane.showMessageDialog(frame, "No tables found in database " + sourceDbSettings.database, "Error fetching table names",
 							JOptionPane.ERROR_MESSAGE);
@@ -777,7 +850,6 @@ public class WhiteRabbitMain implements ActionListener {
 						}
 					}
 				}
-				connection.close();
 			}
 		}
 	}
@@ -1003,7 +1075,8 @@ public class WhiteRabbitMain implements ActionListener {
 				scanValueScan.isSelected(),
 				Integer.parseInt(scanMinCellCount.getValue().toString()),
 				calculateNumericStats.isSelected(),
-				numStatsSamplerSize
+				numStatsSamplerSize,
+				Integer.parseInt(scanThreadCount.getValue().toString())
 		);
 		scanThread.start();
 	}
@@ -1023,13 +1096,15 @@ public class WhiteRabbitMain implements ActionListener {
 
 		SourceDataScan sourceDataScan = new SourceDataScan();
 
-		public ScanThread(int maxRows, int maxValues, boolean scanValues, int minCellCount, boolean calculateNumericStats, int numericStatsSampleSize) {
+		public ScanThread(int maxRows, int maxValues, boolean scanValues, int minCellCount, boolean calculateNumericStats, int numericStatsSampleSize,
+						  int threadCount) {
 			sourceDataScan.setSampleSize(maxRows);
 			sourceDataScan.setScanValues(scanValues);
 			sourceDataScan.setMinCellCount(minCellCount);
 			sourceDataScan.setMaxValues(maxValues);
 			sourceDataScan.setCalculateNumericStats(calculateNumericStats);
 			sourceDataScan.setNumStatsSamplerSize(numericStatsSampleSize);
+			sourceDataScan.setThreadCount(threadCount);
 		}
 
 		public void run() {
@@ -1043,6 +1118,8 @@ public class WhiteRabbitMain implements ActionListener {
 							table = folderField.getText() + "/" + table;
 						dbSettings.tables.add(table);
 					}
+					if (dbSettings.sourceType == DbSettings.SourceType.DATABASE && describeSource(dbSettings).equals(schemaMetadataSource))
+						sourceDataScan.setSchemaMetadata(schemaMetadata);
 					sourceDataScan.process(dbSettings, folderField.getText() + "/ScanReport.xlsx");
 				}
 			} catch (Exception e) {
@@ -1063,6 +1140,7 @@ public class WhiteRabbitMain implements ActionListener {
 			}
 			try {
 				FakeDataGenerator process = new FakeDataGenerator();
+				process.setJoinKey(joinKeyField.getText());
 				DbSettings dbSettings = getTargetDbSettings();
 				if (dbSettings != null) {
 					process.generateData(
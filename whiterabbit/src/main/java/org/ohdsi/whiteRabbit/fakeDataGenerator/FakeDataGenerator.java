@@ -34,11 +34,24 @@ public class FakeDataGenerator {
 	private RichConnection connection;
 	private int maxRowsPerTable = 1000;
 	private boolean doUniformSampling;
+	private String joinKey = "";
+	private String[] joinKeyValues;
 
 	private static int REGULAR = 0;
 	private static int RANDOM = 1;
 	private static int PRIMARY_KEY = 2;
 
+	/**
+	 * Sets a key field (for instance person_id) that the generated tables should join on. The values of this field are
+	 * taken from one set of key values for all tables: the values of the field in the scan report, or 1 to the maximum
+	 * number of rows if the report has none. A table where the field is unique gets every key once.
+	 *
+	 * @param joinKey the name of the key field, or an empty string for none
+	 */
+	public void setJoinKey(String joinKey) {
+		this.joinKey = joinKey == null ? "" : joinKey.trim();
+	}
+
 	public void generateData(DbSettings dbSettings, int maxRowsPerTable, String filename, String folder) {
 		generateData(dbSettings, maxRowsPerTable, filename, folder, false);
 	}
@@ -51,6 +64,7 @@ public class FakeDataGenerator {
 		StringUtilities.outputWithTime("Starting creation of fake data");
 		System.out.println("Loading scan report from " + filename);
 		Database database = Database.generateModelFromScanReport(filename);
+		joinKeyValues = joinKey.isEmpty() ? null : collectJoinKeyValues(database);
 
 		if (targetType == DbSettings.SourceType.DATABASE) {
 			connection = new RichConnection(dbSettings.server, dbSettings.domain, dbSettings.user, dbSettings.password, dbSettings.dbType);
@@ -90,7 +104,8 @@ public class FakeDataGenerator {
 		for (int i = 0; i < table.getFields().size(); i++) {
 			Field field = table.getFields().get(i);
 			fieldNames[i] = field.getName();
-			ValueGenerator valueGenerator = new ValueGenerator(field);
+			ValueGenerator valueGenerator = joinKeyValues != null && field.getName().equalsIgnoreCase(joinKey) ?
+					new ValueGenerator(field, joinKeyValues) : new ValueGenerator(field);
 			valueGenerators[i] = valueGenerator;
 //			if (valueGenerator.generatorType == PRIMARY_KEY && valueGenerator.values.length < size)
 //				size = valueGenerator.values.length;
@@ -105,6 +120,24 @@ public class FakeDataGenerator {
 		return rows;
 	}
 
+	/**
+	 * Collects the distinct values of the join key field over all tables, at most as many as the number of rows per
+	 * table, so a table where the key is unique can hold all of them.
+	 */
+	private String[] collectJoinKeyValues(Database database) {
+		Set<String> values = new LinkedHashSet<>();
+		for (Table table : database.getTables())
+			for (Field field : table.getFields())
+				if (field.getName().equalsIgnoreCase(joinKey))
+					for (ValueCounts.ValueCount valueCount : field.getValueCounts().getAll())
+						if (values.size() < maxRowsPerTable && !valueCount.getValue().trim().isEmpty())
+							values.add(valueCount.getValue());
+		if (values.isEmpty())
+			for (int i = 1; i <= maxRowsPerTable; i++)
+				values.add(String.valueOf(i));
+		return values.toArray(new String[0]);
+	}
+
 	private void createTable(Table table) {
 		StringBuilder sql = new StringBuilder();
 		sql.append("CREATE TABLE " + table.getName() + " (\n");
@@ -175,6 +208,22 @@ public class FakeDataGenerator {
 			}
 		}
 
+		/**
+		 * Creates a generator choosing from the given key values with equal probability, or taking each in turn if the
+		 * field is unique.
+		 */
+		public ValueGenerator(Field field, String[] keyValues) {
+			fieldName = field.getName();
+			type = field.getType();
+			values = keyValues;
+			cumulativeFrequency = new int[keyValues.length];
+			for (int i = 0; i < keyValues.length; i++)
+				cumulativeFrequency[i] = i + 1;
+			totalFrequency = keyValues.length;
+			boolean isUnique = field.getFractionUnique() != null && field.getFractionUnique() == 1;
+			generatorType = isUnique ? PRIMARY_KEY : REGULAR;
+		}
+
 		public String generate() {
 			if (generatorType == RANDOM) { // Random generate a string:
 				if (isVarChar(type)) {
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Feeds the rows of a table to one value consumer per column.
+ *
+ * <p>With a single worker, every value is handed to its column consumer on the calling thread. With more workers,
+ * the calling thread only collects rows into batches, and every batch is handed to all workers. Each worker owns a
+ * disjoint set of columns, so a column consumer is only ever called from one thread and needs no locking.
+ */
+public class ColumnPipeline {
+	public static int BATCH_SIZE = 1000;
+	public static int QUEUE_CAPACITY = 4;
+
+	private static final String[][] END_OF_DATA = new String[0][];
+
+	private final List<? extends Consumer<? super CharSequence>> columns;
+	private final int workerCount;
+	private final List<BlockingQueue<String[][]>> queues = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile Throwable failure;
+
+	private String[][] batch;
+	private int batchSize;
+	private long rowCount = 0;
+	private long startTime;
+	private long endTime;
+	private boolean closed = false;
+
+	/**
+	 * @param columns     consumers of the values of each column, in the order of the values in a row
+	 * @param workerCount number of threads processing the values. One (or less) means values are processed on the
+	 *                    calling thread
+	 */
+	public ColumnPipeline(List<? extends Consumer<? super CharSequence>> columns, int workerCount) {
+		this.columns = columns;
+		this.workerCount = Math.max(1, Math.min(workerCount, columns.size()));
+		this.startTime = System.currentTimeMillis();
+		if (this.workerCount > 1) {
+			batch = new String[BATCH_SIZE][];
+			for (int i = 0; i < this.workerCount; i++) {
+				BlockingQueue<String[][]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+				int worker = i;
+				Thread thread = new Thread(() -> processBatches(worker, queue), "ColumnWorker-" + i);
+				thread.setDaemon(true);
+				queues.add(queue);
+				workers.add(thread);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Add a row. The row must have one value per column, and must not be changed after it has been added.
+	 */
+	public void add(String[] row) {
+		if (workerCount == 1) {
+			for (int i = 0; i < row.length; i++) {
+				columns.get(i).accept(row[i]);
+			}
+		} else {
+			batch[batchSize++] = row;
+			if (batchSize == batch.length) {
+				dispatch(batch);
+				batch = new String[BATCH_SIZE][];
+				batchSize = 0;
+			}
+		}
+		rowCount++;
+	}
+
+	/**
+	 * Add a row of which the values are provided by a function of the column index. With a single worker the values are
+	 * processed immediately, so the function may return a buffer that is reused for every value. Otherwise the values
+	 * are copied to Strings.
+	 */
+	public void add(IntFunction<? extends CharSequence> row) {
+		if (workerCount == 1) {
+			for (int i = 0; i < columns.size(); i++) {
+				columns.get(i).accept(row.apply(i));
+			}
+			rowCount++;
+		} else {
+			String[] values = new String[columns.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = row.apply(i).toString();
+			}
+			add(values);
+		}
+	}
+
+	/**
+	 * Processes the remaining rows and waits for the workers to finish. Any exception thrown by a column consumer is
+	 * rethrown here, after the workers have stopped.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (workerCount > 1) {
+			try {
+				try {
+					if (batchSize > 0 && failure == null) {
+						String[][] lastBatch = new String[batchSize][];
+						System.arraycopy(batch, 0, lastBatch, 0, batchSize);
+						enqueue(lastBatch);
+					}
+				} finally {
+					// The workers are always stopped, also after a failure, so no thread is left waiting for rows
+					enqueue(END_OF_DATA);
+					for (Thread worker : workers) {
+						worker.join();
+					}
+				}
+			} catch (InterruptedException e) {
+				for (Thread worker : workers) {
+					worker.interrupt();
+				}
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} finally {
+				batch = null;
+			}
+		}
+		endTime = System.currentTimeMillis();
+		throwOnFailure();
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public long getCellCount() {
+		return rowCount * columns.size();
+	}
+
+	/**
+	 * @return description of the number of rows and cells processed per second
+	 */
+	public String getThroughput() {
+		double seconds = Math.max(1, (closed ? endTime : System.currentTimeMillis()) - startTime) / 1000d;
+		return String.format("%.0f rows/s, %.0f cells/s", getRowCount() / seconds, getCellCount() / seconds);
+	}
+
+	private void dispatch(String[][] rows) {
+		throwOnFailure();
+		try {
+			enqueue(rows);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void enqueue(String[][] rows) throws InterruptedException {
+		for (BlockingQueue<String[][]> queue : queues) {
+			queue.put(rows);
+		}
+	}
+
+	private void processBatches(int worker, BlockingQueue<String[][]> queue) {
+		try {
+			String[][] rows;
+			while ((rows = queue.take()) != END_OF_DATA) {
+				// After a failure, keep draining the queue so the reading thread is not blocked
+				if (failure != null) {
+					continue;
+				}
+				try {
+					for (int column = worker; column < columns.size(); column += workerCount) {
+						Consumer<? super CharSequence> consumer = columns.get(column);
+						for (String[] row : rows) {
+							consumer.accept(row[column]);
+						}
+					}
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void throwOnFailure() {
+		if (failure != null) {
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw new RuntimeException(failure);
+		}
+	}
+}
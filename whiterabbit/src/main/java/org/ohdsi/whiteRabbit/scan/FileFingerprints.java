@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Fingerprints and watermarks of scanned files, with which a later scan finds out whether a file changed, or was only
+ * appended to, since it was scanned. Both only read the first and last {@link SourceDataScan#FINGERPRINT_BYTES} bytes
+ * of the file, or of the part that was scanned.
+ */
+public class FileFingerprints {
+
+	/**
+	 * Fingerprints a file by its size, modification time and a checksum of its first and last FINGERPRINT_BYTES bytes,
+	 * which does not require reading the whole file, but changes when the file is replaced or appended to.
+	 */
+	public static String fingerprint(String fileName) throws IOException {
+		File file = new File(fileName);
+		CRC32 checksum = new CRC32();
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			long length = randomAccessFile.length();
+			byte[] buffer = new byte[(int) Math.min(SourceDataScan.FINGERPRINT_BYTES, length)];
+			randomAccessFile.readFully(buffer);
+			checksum.update(buffer);
+			randomAccessFile.seek(length - buffer.length);
+			randomAccessFile.readFully(buffer);
+			checksum.update(buffer);
+			return "size=" + length + ";modified=" + file.lastModified() + ";checksum=" + Long.toHexString(checksum.getValue());
+		}
+	}
+
+	/**
+	 * Describes how far a file was scanned: the offset, with a checksum of up to FINGERPRINT_BYTES bytes before it, so
+	 * the next scan can check that the file was only appended to since.
+	 *
+	 * @return the watermark, or null if the file is shorter than the offset
+	 */
+	public static String createWatermark(String fileName, long offset) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "r")) {
+			if (randomAccessFile.length() < offset)
+				return null;
+			byte[] buffer = new byte[(int) Math.min(SourceDataScan.FINGERPRINT_BYTES, offset)];
+			randomAccessFile.seek(offset - buffer.length);
+			randomAccessFile.readFully(buffer);
+			CRC32 checksum = new CRC32();
+			checksum.update(buffer);
+			return offset + ";" + Long.toHexString(checksum.getValue());
+		}
+	}
+
+	/**
+	 * Returns the offset up to which a file was scanned, as described by its watermark.
+	 */
+	public static long getWatermarkOffset(String watermark) {
+		return Long.parseLong(watermark.substring(0, watermark.indexOf(';')));
+	}
+
+	/**
+	 * Returns the byte offset up to which a file can be scanned: the end of the file if it has the given size, so it is
+	 * not being written to, otherwise the offset after the last line break, or start if there is none after it, so a
+	 * line that is still being written is left for the next scan.
+	 */
+	public static long findEndOfScan(String fileName, long start, long expectedSize) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "r")) {
+			long end = randomAccessFile.length();
+			if (end == expectedSize)
+				return end;
+			byte[] buffer = new byte[65536];
+			while (end > start) {
+				int length = (int) Math.min(buffer.length, end - start);
+				randomAccessFile.seek(end - length);
+				randomAccessFile.readFully(buffer, 0, length);
+				for (int i = length - 1; i >= 0; i--)
+					if (buffer[i] == '\n' || buffer[i] == '\r')
+						return end - length + i + 1;
+				end -= length;
+			}
+			return start;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+/**
+ * How the rows of a delimited text file or SAS file are chosen when not all rows are scanned.
+ */
+public enum FileSamplingMethod {
+	/**
+	 * Scan the first rows of the file. Reads the least, but the sample is not representative for files that are
+	 * sorted, for instance by date.
+	 */
+	FIRST_ROWS,
+	/**
+	 * Scan a uniform random sample of the rows. Every row is read, but only the rows in the sample are split into
+	 * values and profiled. For SAS files, reading stops after the last row in the sample.
+	 */
+	RANDOM_ROWS,
+	/**
+	 * Scan randomly chosen blocks of consecutive rows, from the blocks starting at every SAMPLE_BLOCK_ROWS-th row, so
+	 * every row has the same chance of being sampled. The file is read once to find the blocks, only looking for line
+	 * ends, and only the rows in the sampled blocks are split into values. SAS files cannot be read from an arbitrary
+	 * position, so they are sampled as with RANDOM_ROWS.
+	 */
+	RANDOM_BLOCKS;
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.util.List;
+
+import org.ohdsi.databases.DbType;
+
+/**
+ * Samples rows by the hash of a key column, such as person_id: a row is kept when hash(key) mod MODULUS is below a
+ * threshold. The same keys are kept in every table, so the samples of tables that are joined on the key still join.
+ * Rows with an empty key are not kept.
+ *
+ * <p>For databases the test is a predicate using a hash function of the database, so only the sampled rows are
+ * returned. The hash differs between databases and from {@link #accepts(CharSequence)}, which is used for files, but is
+ * the same for all tables of one source. Keys are hashed as text, so a key stored as a number in one table and as text
+ * in another is sampled the same. Numbers read from files as objects should be converted with
+ * {@link #toKeyText(Object)}, so that an integer stored as a floating point number is hashed without decimals.
+ */
+public class KeySampler {
+	public static int		MODULUS	= 10000;
+
+	private final String	keyColumn;
+	private final double	fraction;
+	private final int		threshold;
+
+	/**
+	 * @param keyColumn
+	 *            name of the key column, matched case-insensitively
+	 * @param fraction
+	 *            the fraction of the keys to keep
+	 */
+	public KeySampler(String keyColumn, double fraction) {
+		if (fraction <= 0 || fraction > 1)
+			throw new IllegalArgumentException("Key sampling fraction must be larger than 0 and at most 1");
+		this.keyColumn = keyColumn;
+		this.fraction = fraction;
+		this.threshold = Math.max(1, (int) Math.round(fraction * MODULUS));
+	}
+
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+
+	public double getFraction() {
+		return fraction;
+	}
+
+	/**
+	 * Returns the index of the key column in the given column names, or -1 if the table has no key column.
+	 */
+	public int findKeyColumn(List<String> columnNames) {
+		for (int i = 0; i < columnNames.size(); i++)
+			if (columnNames.get(i).trim().equalsIgnoreCase(keyColumn))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the text of a key value as it is hashed. Numbers without a fraction, such as the 123.0 that a SAS file
+	 * holds for the integer 123, are written without decimals, so they are sampled the same as the text 123.
+	 */
+	public static String toKeyText(Object key) {
+		if (key instanceof Double || key instanceof Float) {
+			double value = ((Number) key).doubleValue();
+			if (value == Math.rint(value) && Math.abs(value) < 0x1p63)
+				return Long.toString((long) value);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns whether a row with the given key value is in the sample.
+	 */
+	public boolean accepts(CharSequence key) {
+		int start = 0;
+		int end = key.length();
+		while (start < end && Character.isWhitespace(key.charAt(start)))
+			start++;
+		while (end > start && Character.isWhitespace(key.charAt(end - 1)))
+			end--;
+		if (start == end)
+			return false;
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + key.charAt(i);
+		return (mix(hash) & Integer.MAX_VALUE) % MODULUS < threshold;
+	}
+
+	/**
+	 * Creates the condition selecting the sampled rows in a WHERE clause, or returns null if the database has no hash
+	 * function, in which case the rows have to be filtered with {@link #accepts(CharSequence)}.
+	 *
+	 * @param column
+	 *            the quoted column reference
+	 */
+	public String createPredicate(DbType dbType, String column) {
+		if (dbType == DbType.POSTGRESQL)
+			return "MOD(('x' || SUBSTR(MD5(CAST(" + column + " AS TEXT)), 1, 7))::BIT(28)::INT, " + MODULUS + ") < " + threshold;
+		else if (dbType == DbType.REDSHIFT)
+			return "MOD(STRTOL(SUBSTRING(MD5(CAST(" + column + " AS VARCHAR)), 1, 7), 16), " + MODULUS + ") < " + threshold;
+		else if (dbType == DbType.MYSQL)
+			return "MOD(CONV(SUBSTRING(MD5(" + column + "), 1, 7), 16, 10), " + MODULUS + ") < " + threshold;
+		else if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "ABS(CAST(CHECKSUM(CAST(" + column + " AS NVARCHAR(200))) AS BIGINT)) % " + MODULUS + " < " + threshold;
+		else if (dbType == DbType.ORACLE)
+			return "MOD(ORA_HASH(TO_CHAR(" + column + ")), " + MODULUS + ") < " + threshold;
+		else if (dbType == DbType.BIGQUERY)
+			return "ABS(MOD(FARM_FINGERPRINT(CAST(" + column + " AS STRING)), " + MODULUS + ")) < " + threshold;
+		else if (dbType == DbType.TERADATA)
+			return "HASHBUCKET(HASHROW(TRIM(CAST(" + column + " AS VARCHAR(200))))) MOD " + MODULUS + " < " + threshold;
+		else
+			return null;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, so keys that differ in a single character are spread over all values.
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
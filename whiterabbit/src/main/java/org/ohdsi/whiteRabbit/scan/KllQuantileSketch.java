@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Quantile sketch of Karnin, Lang and Liberty (KLL). Values are kept in levels, where a value at level h represents
+ * 2^h values. When the sketch is full, the lowest full level is sorted, and every other value (starting at a random
+ * offset) moves up a level. The capacity of a level shrinks by a factor 2/3 for every level below the top, so the
+ * sketch keeps at most about 3k values however many values are added, and adding a value takes O(log k) amortized
+ * time.
+ *
+ * <p>As long as no level has been compacted, the sketch holds all values and the quantiles are exact. Otherwise the
+ * rank of a quantile is off by at most {@link #getNormalizedRankError(int)} (as a fraction of the number of values)
+ * with 99% confidence. Sketches can be merged.
+ */
+public class KllQuantileSketch implements QuantileEstimator {
+	public static final int DEFAULT_K = 200;
+
+	private static final double	CAPACITY_DECAY		= 2d / 3d;
+	private static final int	MIN_LEVEL_CAPACITY	= 8;
+
+	private final int				k;
+	private double[][]				levels;
+	private int[]					levelSizes;
+	private int						retainedCount	= 0;
+	private int[]					capacities;
+	private int						totalCapacity;
+	private final RunningStatistics	population	= new RunningStatistics();
+
+	// All retained values with their weights, sorted by value. Created when quantiles are requested
+	private double[]				sortedValues;
+	private long[]					cumulativeWeights;
+
+	public KllQuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * @param k size of the largest level. The rank error decreases about linearly with k
+	 */
+	public KllQuantileSketch(int k) {
+		if (k < MIN_LEVEL_CAPACITY) {
+			throw new IllegalArgumentException("k must be at least " + MIN_LEVEL_CAPACITY);
+		}
+		this.k = k;
+		levels = new double[][] { new double[k] };
+		levelSizes = new int[1];
+		updateCapacities();
+	}
+
+	/**
+	 * Returns the normalized rank error of a quantile for a sketch with the given k, at 99% confidence. Based on the
+	 * empirical fit of Apache DataSketches for the same algorithm.
+	 */
+	public static double getNormalizedRankError(int k) {
+		return 2.296 / Math.pow(k, 0.9723);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	@Override
+	public void add(double value) {
+		population.add(value);
+		append(0, value);
+		sortedValues = null;
+		compress();
+	}
+
+	@Override
+	public void merge(QuantileEstimator other) {
+		if (!(other instanceof KllQuantileSketch)) {
+			throw new IllegalArgumentException("Cannot merge a " + other.getClass().getSimpleName() + " into a KllQuantileSketch");
+		}
+		KllQuantileSketch sketch = (KllQuantileSketch) other;
+		population.merge(sketch.population);
+		for (int level = 0; level < sketch.levels.length; level++) {
+			for (int i = 0; i < sketch.levelSizes[level]; i++) {
+				append(level, sketch.levels[level][i]);
+			}
+		}
+		sortedValues = null;
+		compress();
+	}
+
+	@Override
+	public double getQuantile(double fraction) {
+		if (population.getCount() == 0) {
+			return Double.NaN;
+		}
+		if (levels.length == 1) {
+			// Nothing has been compacted, so all values are still here
+			double[] values = Arrays.copyOf(levels[0], levelSizes[0]);
+			Arrays.sort(values);
+			return QuantileEstimator.interpolate(values, values.length, fraction);
+		}
+		if (fraction <= 0) {
+			return population.getMinimum();
+		}
+		if (fraction >= 1) {
+			return population.getMaximum();
+		}
+		if (sortedValues == null) {
+			createSortedView();
+		}
+		long totalWeight = cumulativeWeights[cumulativeWeights.length - 1];
+		double rank = fraction * totalWeight;
+		int index = Arrays.binarySearch(cumulativeWeights, (long) Math.ceil(rank));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return sortedValues[Math.min(index, sortedValues.length - 1)];
+	}
+
+	@Override
+	public double getPopulationMean() {
+		return population.getMean();
+	}
+
+	@Override
+	public double getPopulationStandardDeviation() {
+		return population.getStandardDeviation();
+	}
+
+	@Override
+	public double getPopulationMinimum() {
+		return population.getMinimum();
+	}
+
+	@Override
+	public double getPopulationMaximum() {
+		return population.getMaximum();
+	}
+
+	@Override
+	public long getCount() {
+		return population.getCount();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(k);
+		population.write(out);
+		out.writeInt(levels.length);
+		for (int level = 0; level < levels.length; level++) {
+			out.writeInt(levelSizes[level]);
+			for (int i = 0; i < levelSizes[level]; i++) {
+				out.writeDouble(levels[level][i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a sketch written by {@link #write(DataOutput)}.
+	 */
+	public static KllQuantileSketch read(DataInput in) throws IOException {
+		KllQuantileSketch sketch = new KllQuantileSketch(in.readInt());
+		sketch.population.read(in);
+		int levelCount = in.readInt();
+		sketch.levels = new double[levelCount][];
+		sketch.levelSizes = new int[levelCount];
+		for (int level = 0; level < levelCount; level++) {
+			int size = in.readInt();
+			sketch.levels[level] = new double[Math.max(size, MIN_LEVEL_CAPACITY)];
+			for (int i = 0; i < size; i++) {
+				sketch.levels[level][i] = in.readDouble();
+			}
+			sketch.levelSizes[level] = size;
+			sketch.retainedCount += size;
+		}
+		sketch.updateCapacities();
+		return sketch;
+	}
+
+	/** Get the number of values kept in the sketch. */
+	public int getRetainedCount() {
+		return retainedCount;
+	}
+
+	/**
+	 * Computes the capacity of every level, which depends on the number of levels above it.
+	 */
+	private void updateCapacities() {
+		capacities = new int[levels.length];
+		totalCapacity = 0;
+		for (int level = 0; level < levels.length; level++) {
+			int depth = levels.length - 1 - level;
+			capacities[level] = Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+			totalCapacity += capacities[level];
+		}
+	}
+
+	private void append(int level, double value) {
+		if (level >= levels.length) {
+			int levelCount = levels.length;
+			levels = Arrays.copyOf(levels, level + 1);
+			for (int i = levelCount; i <= level; i++) {
+				levels[i] = new double[MIN_LEVEL_CAPACITY];
+			}
+			levelSizes = Arrays.copyOf(levelSizes, level + 1);
+			updateCapacities();
+		}
+		if (levelSizes[level] == levels[level].length) {
+			levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+		}
+		levels[level][levelSizes[level]++] = value;
+		retainedCount++;
+	}
+
+
+	/**
+	 * Compacts the lowest full level until the sketch is no longer full. If the sketch is full, at least one level is.
+	 */
+	private void compress() {
+		while (retainedCount >= totalCapacity) {
+			int level = 0;
+			while (levelSizes[level] < capacities[level]) {
+				level++;
+			}
+			compact(level);
+		}
+	}
+
+	/**
+	 * Sorts the level and moves every other value to the next level, where it counts double. With an odd number of
+	 * values, the largest stays behind.
+	 */
+	private void compact(int level) {
+		double[] values = levels[level];
+		int size = levelSizes[level];
+		Arrays.sort(values, 0, size);
+		int pairs = size / 2;
+		int offset = ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+		for (int i = 0; i < pairs; i++) {
+			append(level + 1, values[2 * i + offset]);
+		}
+		if (size % 2 == 1) {
+			values[0] = values[size - 1];
+		}
+		levelSizes[level] = size % 2;
+		// The values moved up were counted again when appended
+		retainedCount -= size - size % 2;
+	}
+
+	/**
+	 * Merges the sorted levels into one sorted array of values, and their cumulative weights.
+	 */
+	private void createSortedView() {
+		double[] values = new double[0];
+		long[] weights = new long[0];
+		for (int level = 0; level < levels.length; level++) {
+			double[] levelValues = Arrays.copyOf(levels[level], levelSizes[level]);
+			Arrays.sort(levelValues);
+			double[] mergedValues = new double[values.length + levelValues.length];
+			long[] mergedWeights = new long[mergedValues.length];
+			int i = 0;
+			int j = 0;
+			for (int m = 0; m < mergedValues.length; m++) {
+				if (j == levelValues.length || (i < values.length && values[i] <= levelValues[j])) {
+					mergedValues[m] = values[i];
+					mergedWeights[m] = weights[i];
+					i++;
+				} else {
+					mergedValues[m] = levelValues[j];
+					mergedWeights[m] = 1L << level;
+					j++;
+				}
+			}
+			values = mergedValues;
+			weights = mergedWeights;
+		}
+		for (int i = 1; i < weights.length; i++) {
+			weights[i] += weights[i - 1];
+		}
+		sortedValues = values;
+		cumulativeWeights = weights;
+	}
+}
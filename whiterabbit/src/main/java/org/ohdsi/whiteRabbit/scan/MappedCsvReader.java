@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a UTF-8 encoded delimited text file through memory mapped windows of the file, splitting lines into cells
+ * without creating a String per line or per cell.
+ *
+ * <p>Lines and cells are split the same way as reading the file with {@link org.ohdsi.utilities.files.ReadTextFile}
+ * and splitting the lines with {@link org.ohdsi.utilities.StringUtilities#safeSplit(String, char)}: delimiters
+ * between double quotes or after a backslash do not split, cells enclosed in double quotes are unquoted, and \" is
+ * replaced by ". The delimiter must be an ASCII character.
+ */
+public class MappedCsvReader implements Closeable {
+	public static int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+	private final FileChannel channel;
+	private final long end;
+	private final byte delimiter;
+
+	private MappedByteBuffer window;
+	private long windowStart = 0;
+	private int windowLength = 0;
+	private boolean lastWindow = false;
+	private int windowSize = WINDOW_SIZE;
+	private int position = 0;
+
+	// Byte offsets of the cells of the current line in the current window
+	private int[] cellStarts = new int[64];
+	private int[] cellEnds = new int[64];
+	private int cellCount = 0;
+
+	private final CharArraySequence cell = new CharArraySequence();
+
+	public MappedCsvReader(String filename, char delimiter) throws IOException {
+		this(filename, delimiter, 0, -1);
+	}
+
+	/**
+	 * Reads only the lines in the given byte range of the file. The range should start at the start of a line, and end
+	 * at the start of a line or the end of the file (see {@link #findLineStarts(String, long, int, long)}).
+	 *
+	 * @param start
+	 *            byte offset of the first line
+	 * @param end
+	 *            byte offset after the last line, or -1 for the end of the file
+	 */
+	public MappedCsvReader(String filename, char delimiter, long start, long end) throws IOException {
+		if (delimiter > 127)
+			throw new IllegalArgumentException("Delimiter must be an ASCII character");
+		this.delimiter = (byte) delimiter;
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		this.end = end == -1 ? channel.size() : Math.min(end, channel.size());
+		windowStart = Math.min(start, this.end);
+		mapWindow();
+	}
+
+	/**
+	 * Splits the part of the file starting at the given offset into at most the given number of byte ranges of roughly
+	 * equal size, each at least minSize bytes long. Ranges are aligned to the starts of lines, which are the record
+	 * boundaries for this reader: like {@link org.ohdsi.utilities.files.ReadTextFile}, it ends a record at every line
+	 * break, also within quotes.
+	 *
+	 * @return the offsets of the starts of the ranges, followed by the file size
+	 */
+	public static long[] findLineStarts(String filename, long start, int maxParts, long minSize) throws IOException {
+		return findLineStarts(filename, start, -1, maxParts, minSize);
+	}
+
+	/**
+	 * Splits the given byte range of the file like {@link #findLineStarts(String, long, int, long)}.
+	 *
+	 * @param end
+	 *            byte offset of the end of the range, which should be the start of a line, or -1 for the end of the file
+	 * @return the offsets of the starts of the ranges, followed by the end of the range
+	 */
+	public static long[] findLineStarts(String filename, long start, long end, int maxParts, long minSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long size = end == -1 ? channel.size() : Math.min(end, channel.size());
+			int parts = (int) Math.max(1, Math.min(maxParts, (size - start) / Math.max(1, minSize)));
+			long[] starts = new long[parts + 1];
+			int count = 0;
+			starts[count++] = start;
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (int i = 1; i < parts; i++) {
+				long position = Math.max(start + (size - start) * i / parts, starts[count - 1]);
+				position = findNextLineStart(channel, position, size, buffer);
+				if (position > starts[count - 1] && position < size)
+					starts[count++] = position;
+			}
+			starts[count++] = size;
+			return Arrays.copyOf(starts, count);
+		}
+	}
+
+	private static long findNextLineStart(FileChannel channel, long position, long size, ByteBuffer buffer) throws IOException {
+		boolean afterCarriageReturn = false;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (afterCarriageReturn)
+					return b == '\n' ? position + i + 1 : position + i;
+				if (b == '\n')
+					return position + i + 1;
+				if (b == '\r')
+					afterCarriageReturn = true;
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	/**
+	 * Moves to the next line.
+	 *
+	 * @return false if the end of the file has been reached
+	 */
+	public boolean next() throws IOException {
+		return advance(true);
+	}
+
+	/**
+	 * Moves past the next line without splitting it into cells, which is faster than {@link #next()} for lines that
+	 * are not used. The cells of the skipped line are not available.
+	 *
+	 * @return false if the end of the file has been reached
+	 */
+	public boolean skipLine() throws IOException {
+		return advance(false);
+	}
+
+	private boolean advance(boolean split) throws IOException {
+		while (true) {
+			if (position >= windowLength) {
+				if (lastWindow)
+					return false;
+				windowStart += position;
+				mapWindow();
+				continue;
+			}
+			int lineEnd = split ? splitLine() : findLineEnd();
+			if (lineEnd == -1) {
+				// The line does not end in this window. Map the next window from the start of the line, making the
+				// window larger if the line does not even fit in a window by itself
+				if (position == 0)
+					windowSize = (int) Math.min((long) windowSize * 2, Integer.MAX_VALUE - 8);
+				windowStart += position;
+				mapWindow();
+				continue;
+			}
+			position = lineEnd;
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the byte offset in the file after the current line
+	 */
+	public long getPosition() {
+		return windowStart + position;
+	}
+
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Returns the value of a cell of the current line. The returned sequence is reused by the next call, so it must be
+	 * copied (for instance using toString()) to keep it.
+	 */
+	public CharSequence getCell(int index) {
+		decode(cellStarts[index], cellEnds[index]);
+		return cell;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	private void mapWindow() throws IOException {
+		long length = Math.min(windowSize, end - windowStart);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+		windowLength = (int) length;
+		lastWindow = windowStart + length == end;
+		position = 0;
+	}
+
+	/**
+	 * Finds the cells of the line starting at the current position.
+	 *
+	 * @return the position after the end of line, or -1 if the line does not end within the window
+	 */
+	private int splitLine() {
+		MappedByteBuffer window = this.window;
+		boolean literal = false;
+		boolean escape = false;
+		int cellStart = position;
+		cellCount = 0;
+		for (int i = position; i < windowLength; i++) {
+			byte b = window.get(i);
+			if (b == '\n' || b == '\r') {
+				if (b == '\r' && i + 1 == windowLength && !lastWindow)
+					return -1; // Could be followed by \n in the next window
+				addCell(cellStart, i);
+				if (b == '\r' && i + 1 < windowLength && window.get(i + 1) == '\n')
+					return i + 2;
+				return i + 1;
+			}
+			if (b == '"' && !escape)
+				literal = !literal;
+			if (!literal && b == delimiter && !escape) {
+				addCell(cellStart, i);
+				cellStart = i + 1;
+			}
+			if (b == '\\')
+				escape = !escape;
+			else
+				escape = false;
+		}
+		if (!lastWindow)
+			return -1;
+		addCell(cellStart, windowLength);
+		return windowLength;
+	}
+
+	/**
+	 * Finds the end of the line starting at the current position, like {@link #splitLine()} but without finding the
+	 * cells.
+	 */
+	private int findLineEnd() {
+		MappedByteBuffer window = this.window;
+		cellCount = 0;
+		for (int i = position; i < windowLength; i++) {
+			byte b = window.get(i);
+			if (b == '\n' || b == '\r') {
+				if (b == '\r' && i + 1 == windowLength && !lastWindow)
+					return -1;
+				if (b == '\r' && i + 1 < windowLength && window.get(i + 1) == '\n')
+					return i + 2;
+				return i + 1;
+			}
+		}
+		return lastWindow ? windowLength : -1;
+	}
+
+	private void addCell(int start, int end) {
+		if (cellCount == cellStarts.length) {
+			cellStarts = Arrays.copyOf(cellStarts, cellCount * 2);
+			cellEnds = Arrays.copyOf(cellEnds, cellCount * 2);
+		}
+		cellStarts[cellCount] = start;
+		cellEnds[cellCount] = end;
+		cellCount++;
+	}
+
+	/**
+	 * Decodes the UTF-8 bytes of a cell into the reusable cell buffer, removing enclosing quotes and unescaping quotes.
+	 */
+	private void decode(int start, int end) {
+		MappedByteBuffer window = this.window;
+		if (end - start > 1 && window.get(start) == '"' && window.get(end - 1) == '"') {
+			start++;
+			end--;
+		}
+		char[] chars = cell.ensureCapacity(end - start);
+		int length = 0;
+		int i = start;
+		while (i < end) {
+			int b = window.get(i) & 0xFF;
+			if (b < 0x80) {
+				if (b == '\\' && i + 1 < end && window.get(i + 1) == '"') {
+					chars[length++] = '"';
+					i += 2;
+				} else {
+					chars[length++] = (char) b;
+					i++;
+				}
+			} else {
+				int sequenceLength = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+				int codePoint = sequenceLength == 4 ? b & 0x07 : sequenceLength == 3 ? b & 0x0F : b & 0x1F;
+				boolean valid = sequenceLength > 1 && i + sequenceLength <= end && b < 0xF8;
+				for (int j = 1; valid && j < sequenceLength; j++) {
+					int continuation = window.get(i + j) & 0xFF;
+					if ((continuation & 0xC0) != 0x80)
+						valid = false;
+					codePoint = (codePoint << 6) | (continuation & 0x3F);
+				}
+				if (valid) {
+					if (codePoint >= 0x10000)
+						length += Character.toChars(codePoint, chars, length);
+					else
+						chars[length++] = (char) codePoint;
+					i += sequenceLength;
+				} else {
+					chars[length++] = REPLACEMENT_CHARACTER;
+					i++;
+				}
+			}
+		}
+		cell.length = length;
+	}
+
+	/**
+	 * A reusable character sequence backed by an array
+	 */
+	private static class CharArraySequence implements CharSequence {
+		private char[] chars = new char[256];
+		private int length = 0;
+
+		private char[] ensureCapacity(int capacity) {
+			if (chars.length < capacity)
+				chars = new char[Math.max(capacity, chars.length * 2)];
+			return chars;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index >= length)
+				throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+			return chars[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end)
+				throw new IndexOutOfBoundsException("Subsequence " + start + "-" + end + " out of bounds for length " + length);
+			return new String(chars, start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, 0, length);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ohdsi.databases.DbType;
+
+/**
+ * Creates the queries and expressions with which the database profiles a table itself (push-down profiling), in the
+ * SQL dialect of each database, and the references to tables and columns used in them.
+ */
+public class ProfileQueryBuilder {
+	private final DbType	dbType;
+
+	public ProfileQueryBuilder(DbType dbType) {
+		this.dbType = dbType;
+	}
+
+	public String getTableReference(String table) {
+		return SampleQueryBuilder.getTableReference(dbType, table);
+	}
+
+	public String getColumnReference(String column) {
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE || dbType == DbType.MSACCESS)
+			return "[" + column + "]";
+		else if (dbType == DbType.MYSQL || dbType == DbType.BIGQUERY)
+			return "`" + column + "`";
+		else
+			return "\"" + column + "\"";
+	}
+
+	/**
+	 * Creates an expression counting the missing values of the column, and for text also the blank values.
+	 */
+	public String createCountEmptyExpression(String column, boolean isText) {
+		if (!isText)
+			return "SUM(CASE WHEN " + column + " IS NULL THEN 1 ELSE 0 END)";
+		else if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "SUM(CASE WHEN " + column + " IS NULL OR LTRIM(RTRIM(" + column + ")) = '' THEN 1 ELSE 0 END)";
+		else
+			return "SUM(CASE WHEN " + column + " IS NULL OR TRIM(" + column + ") = '' THEN 1 ELSE 0 END)";
+	}
+
+	/**
+	 * Creates an expression for the length of a value of the column as text.
+	 */
+	public String createLengthExpression(String column, boolean isText) {
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "LEN(" + (isText ? column : "CAST(" + column + " AS VARCHAR(100))") + ")";
+		else if (dbType == DbType.MYSQL)
+			return "CHAR_LENGTH(" + (isText ? column : "CAST(" + column + " AS CHAR)") + ")";
+		else if (dbType == DbType.ORACLE)
+			return "LENGTH(" + (isText ? column : "TO_CHAR(" + column + ")") + ")";
+		else if (dbType == DbType.TERADATA)
+			return "CHARACTER_LENGTH(" + (isText ? column : "TRIM(CAST(" + column + " AS VARCHAR(100)))") + ")";
+		else if (dbType == DbType.BIGQUERY)
+			return "LENGTH(" + (isText ? column : "CAST(" + column + " AS STRING)") + ")";
+		else
+			return "LENGTH(" + (isText ? column : "CAST(" + column + " AS VARCHAR)") + ")";
+	}
+
+	public String createAverageExpression(String column) {
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "AVG(CAST(" + column + " AS FLOAT))";
+		else
+			return "AVG(" + column + ")";
+	}
+
+	public String createStandardDeviationExpression(String column) {
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "STDEV(CAST(" + column + " AS FLOAT))";
+		else
+			return "STDDEV_SAMP(" + column + ")";
+	}
+
+	/**
+	 * Creates a query returning the most frequent values of the column with their counts, most frequent first.
+	 */
+	public String createValueCountQuery(String column, String tableReference, int maxValues) {
+		String groupBy = " FROM " + tableReference + " GROUP BY " + column + " ORDER BY COUNT(*) DESC";
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE || dbType == DbType.TERADATA)
+			return "SELECT TOP " + maxValues + " " + column + ", COUNT(*)" + groupBy;
+		else if (dbType == DbType.ORACLE)
+			return "SELECT " + column + ", COUNT(*)" + groupBy + " FETCH FIRST " + maxValues + " ROWS ONLY";
+		else
+			return "SELECT " + column + ", COUNT(*)" + groupBy + " LIMIT " + maxValues;
+	}
+
+	/**
+	 * Creates a query returning one row with the given quantiles of the column. MySQL has no percentile function, so
+	 * there every quantile is the value at its rank in the sorted values, fetched with a subquery, which sorts the
+	 * column once per quantile.
+	 *
+	 * @param valueCount
+	 *            the number of values in the column that are not null, to find the ranks of the quantiles
+	 */
+	public String createQuantileQuery(String column, String tableReference, double[] fractions, long valueCount) {
+		List<String> expressions = new ArrayList<>();
+		for (double fraction : fractions) {
+			if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+				expressions.add("PERCENTILE_CONT(" + fraction + ") WITHIN GROUP (ORDER BY " + column + ") OVER ()");
+			else if (dbType == DbType.BIGQUERY)
+				expressions.add("APPROX_QUANTILES(" + column + ", 100)[OFFSET(" + Math.round(fraction * 100) + ")]");
+			else if (dbType == DbType.MYSQL) {
+				long offset = (long) Math.floor(fraction * Math.max(0, valueCount - 1));
+				expressions.add("(SELECT " + column + " FROM " + tableReference + " WHERE " + column + " IS NOT NULL ORDER BY " + column + " LIMIT 1 OFFSET " + offset + ")");
+			} else
+				expressions.add("PERCENTILE_CONT(" + fraction + ") WITHIN GROUP (ORDER BY " + column + ")");
+		}
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "SELECT TOP 1 " + String.join(", ", expressions) + " FROM " + tableReference;
+		else if (dbType == DbType.MYSQL)
+			return "SELECT " + String.join(", ", expressions);
+		else
+			return "SELECT " + String.join(", ", expressions) + " FROM " + tableReference;
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Computes the numeric statistics of a field from a stream of values in bounded memory. The population statistics are
+ * exact, the quantiles may be estimates.
+ */
+public interface QuantileEstimator {
+
+	void add(double value);
+
+	/**
+	 * Adds all values represented by another estimator of the same class, as if they had been added to this one.
+	 *
+	 * @throws IllegalArgumentException if the other estimator is of another class
+	 */
+	void merge(QuantileEstimator other);
+
+	/**
+	 * Get the value below which the given fraction of the values lies, for instance 0.25 for the first quartile.
+	 */
+	double getQuantile(double fraction);
+
+	double getPopulationMean();
+
+	double getPopulationStandardDeviation();
+
+	double getPopulationMinimum();
+
+	double getPopulationMaximum();
+
+	/** Get the number of values added. */
+	long getCount();
+
+	/**
+	 * Writes the state of the estimator, as read by the read method of its class, so adding values can continue later.
+	 */
+	void write(DataOutput out) throws IOException;
+
+	/**
+	 * Interpolates a quantile from all values, sorted. The quantile lies at position fraction * (length + 1).
+	 */
+	static double interpolate(double[] sorted, int length, double fraction) {
+		if (length == 0) {
+			return Double.NaN;
+		}
+		double position = fraction * (length + 1);
+		int intPosition = (int) position;
+		if (intPosition == 0) {
+			return sorted[0];
+		} else if (intPosition >= length) {
+			return sorted[length - 1];
+		} else {
+			double base = sorted[intPosition - 1];
+			return base + (position - intPosition) * (sorted[intPosition] - base);
+		}
+	}
+}
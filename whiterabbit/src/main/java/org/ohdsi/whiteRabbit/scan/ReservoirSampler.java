@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a uniform random sample of a fixed size from a stream of items, using Li's Algorithm L. Instead of drawing a
+ * random number for every item, the sampler draws how many items to skip until the next one is selected, so only
+ * O(size * log(n / size)) random numbers are drawn for n items.
+ *
+ * <p>Callers that have to do work to create an item, such as parsing a row, can check {@link #isNextSelected()} or
+ * {@link #getSkipCount()} first, and only create the items that are selected.
+ *
+ * @param <T> type of the items
+ */
+public class ReservoirSampler<T> {
+	private final int	size;
+	private Object[]	items;
+	private long		count	= 0;
+	// The largest of the random keys of the items in the sample, of which the sample holds the smallest
+	private double		threshold;
+	private long		nextSelected;
+
+	/**
+	 * @param size maximum number of items in the sample
+	 */
+	public ReservoirSampler(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Sample size must be strictly positive");
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Offers the next item, which replaces a random item of the sample if it is selected.
+	 */
+	public void add(T item) {
+		int slot = nextSlot();
+		if (slot >= 0) {
+			if (items == null) {
+				items = new Object[size];
+			}
+			items[slot] = item;
+		}
+	}
+
+	/**
+	 * Counts the next item, and returns where in the sample it should be stored. Until the sample is full this is the
+	 * position after the last item, after that a random position.
+	 *
+	 * @return the position in the sample, or -1 if the item is not selected
+	 */
+	public int nextSlot() {
+		long index = count++;
+		if (index < size) {
+			if (index == size - 1) {
+				threshold = Math.exp(Math.log(nextRandom()) / size);
+				scheduleNext(index);
+			}
+			return (int) index;
+		}
+		if (index != nextSelected) {
+			return -1;
+		}
+		int slot = ThreadLocalRandom.current().nextInt(size);
+		threshold *= Math.exp(Math.log(nextRandom()) / size);
+		scheduleNext(index);
+		return slot;
+	}
+
+	/**
+	 * Returns whether the next item offered will be selected.
+	 */
+	public boolean isNextSelected() {
+		return count < size || count == nextSelected;
+	}
+
+	/**
+	 * Returns how many of the next items will not be selected.
+	 */
+	public long getSkipCount() {
+		return count < size ? 0 : nextSelected - count;
+	}
+
+	/**
+	 * Counts items that are not selected, without offering them.
+	 *
+	 * @param skipCount number of items, at most {@link #getSkipCount()}
+	 */
+	public void skip(long skipCount) {
+		if (skipCount > getSkipCount()) {
+			throw new IllegalArgumentException("Cannot skip " + skipCount + " items, the next item is selected after " + getSkipCount());
+		}
+		count += skipCount;
+	}
+
+	/**
+	 * Sets the number of items offered, for when the sample was replaced by a uniform sample of that many items, for
+	 * instance when merging samples. The next item is then selected with the right probability.
+	 */
+	public void setCount(long count) {
+		this.count = count;
+		if (count >= size) {
+			// The threshold is the size-th smallest of count uniform random keys, which has a Beta(size, count - size + 1)
+			// distribution
+			double x = nextGamma(size);
+			double y = nextGamma(count - size + 1);
+			threshold = x / (x + y);
+			scheduleNext(count - 1);
+		}
+	}
+
+	/** Get the number of items offered. */
+	public long getCount() {
+		return count;
+	}
+
+	/** Get the maximum number of items in the sample. */
+	public int getSize() {
+		return size;
+	}
+
+	/** Get the items in the sample, in no particular order. */
+	@SuppressWarnings("unchecked")
+	public List<T> getSample() {
+		if (items == null) {
+			return new ArrayList<>();
+		}
+		return new ArrayList<>((List<T>) Arrays.asList(items).subList(0, (int) Math.min(count, size)));
+	}
+
+	/**
+	 * Draws the number of items to skip after the item at the given index. The skip is geometrically distributed with
+	 * the threshold as the chance of an item being selected.
+	 */
+	private void scheduleNext(long index) {
+		double skip = Math.floor(Math.log(nextRandom()) / Math.log1p(-threshold));
+		nextSelected = index + 1 + (long) Math.min(skip, Long.MAX_VALUE - index - 1);
+	}
+
+	/**
+	 * Uniform random number in (0, 1], so its logarithm is finite.
+	 */
+	private static double nextRandom() {
+		return 1 - ThreadLocalRandom.current().nextDouble();
+	}
+
+	/**
+	 * Draws from a Gamma(shape, 1) distribution using the method of Marsaglia and Tsang, for a shape of at least 1.
+	 */
+	private static double nextGamma(double shape) {
+		double d = shape - 1d / 3;
+		double c = 1 / Math.sqrt(9 * d);
+		while (true) {
+			double x = ThreadLocalRandom.current().nextGaussian();
+			double v = 1 + c * x;
+			if (v <= 0) {
+				continue;
+			}
+			v = v * v * v;
+			double u = nextRandom();
+			if (Math.log(u) < 0.5 * x * x + d - d * v + d * Math.log(v)) {
+				return d * v;
+			}
+		}
+	}
+}
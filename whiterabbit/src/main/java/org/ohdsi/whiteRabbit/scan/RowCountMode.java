@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+/**
+ * How the number of rows of a database table is determined.
+ */
+public enum RowCountMode {
+	/**
+	 * Count the rows with COUNT(*), which reads the whole table.
+	 */
+	EXACT,
+	/**
+	 * Use the row count in the statistics of the database, which can be outdated. Tables without statistics are counted
+	 * exactly.
+	 */
+	ESTIMATE;
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ohdsi.databases.DbType;
+import org.ohdsi.databases.RichConnection;
+
+/**
+ * Provides the row counts of the tables of a database, counted once per scan. With {@link RowCountMode#ESTIMATE} the
+ * count is taken from the statistics of the database where it has them (pg_class, sys.partitions, ALL_TABLES,
+ * INFORMATION_SCHEMA.TABLES, dbc.StatsV or __TABLES__), and otherwise counted with COUNT(*). The statistics of all
+ * tables are read with a single query. The counts are kept, so the threads of a scan can share one provider.
+ */
+public class RowCountProvider {
+
+	public static class RowCount {
+		public final long		count;
+		public final boolean	exact;
+
+		public RowCount(long count, boolean exact) {
+			this.count = count;
+			this.exact = exact;
+		}
+
+		/** Get how the count was determined, as shown in the scan report. */
+		public String getType() {
+			return exact ? "exact" : "estimate";
+		}
+	}
+
+	private final DbType				dbType;
+	private final String				database;
+	private final RowCountMode			mode;
+	private final Map<String, RowCount>	rowCounts	= new ConcurrentHashMap<>();
+	private Map<String, Long>			estimates;
+
+	public RowCountProvider(DbType dbType, String database, RowCountMode mode) {
+		this.dbType = dbType;
+		this.database = database;
+		this.mode = mode;
+	}
+
+	public RowCount getRowCount(RichConnection connection, String table) {
+		// Not counted inside computeIfAbsent, which would block counting other tables in the meantime
+		RowCount rowCount = rowCounts.get(table);
+		if (rowCount == null) {
+			rowCount = countRows(connection, table);
+			rowCounts.put(table, rowCount);
+		}
+		return rowCount;
+	}
+
+	private RowCount countRows(RichConnection connection, String table) {
+		if (mode == RowCountMode.ESTIMATE) {
+			long estimate = getEstimates(connection).getOrDefault(table, -1L);
+			// Tables that have never been analyzed can have an estimate of 0, so these are counted as well
+			if (estimate > 0)
+				return new RowCount(estimate, dbType == DbType.BIGQUERY);
+		}
+		return new RowCount(connection.getTableSize(table), true);
+	}
+
+	private synchronized Map<String, Long> getEstimates(RichConnection connection) {
+		if (estimates == null) {
+			try {
+				estimates = connection.getTableSizeEstimates(database);
+			} catch (Exception e) {
+				// For instance no access to the statistics
+				System.out.println("Unable to read row counts from the database statistics: " + e.getMessage());
+				estimates = new HashMap<>();
+			}
+		}
+		return estimates;
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Count, sum, mean, variance, minimum and maximum of a stream of values, computed without creating objects per value.
+ *
+ * <ul>
+ *     <li>The sum uses Neumaier's compensated summation, so rounding errors do not add up over many values</li>
+ *     <li>The variance uses Welford's online algorithm, which does not suffer from the cancellation of the sum of
+ *     squares method</li>
+ *     <li>As long as all values are integers, their sum is also kept exactly in 128 bits, and the mean is computed from
+ *     that exact sum</li>
+ * </ul>
+ * Two instances can be merged, giving the same statistics as if all values had been added to one (Chan et al.).
+ */
+public class RunningStatistics {
+	// Integers up to 2^53 are represented exactly by a double
+	private static final double	MAX_EXACT_INTEGER	= 9007199254740992d;
+
+	private long				count				= 0;
+	private double				sum					= 0;
+	private double				compensation		= 0;
+	private double				mean				= 0;
+	private double				m2					= 0;
+	private double				minimum				= Double.POSITIVE_INFINITY;
+	private double				maximum				= Double.NEGATIVE_INFINITY;
+	private boolean				allIntegers			= true;
+	private long				integerSumHigh		= 0;
+	private long				integerSumLow		= 0;
+
+	public void add(double value) {
+		count++;
+		addToSum(value, 0);
+
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+
+		if (value < minimum)
+			minimum = value;
+		if (value > maximum)
+			maximum = value;
+
+		if (allIntegers) {
+			if (value == Math.rint(value) && Math.abs(value) <= MAX_EXACT_INTEGER) {
+				long integer = (long) value;
+				addToIntegerSum(integer >> 63, integer);
+			} else {
+				allIntegers = false;
+			}
+		}
+	}
+
+	/**
+	 * Adds the statistics of the other values to these.
+	 */
+	public void merge(RunningStatistics other) {
+		if (other.count == 0)
+			return;
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+		count = total;
+		addToSum(other.sum, other.compensation);
+		minimum = Math.min(minimum, other.minimum);
+		maximum = Math.max(maximum, other.maximum);
+		allIntegers &= other.allIntegers;
+		if (allIntegers)
+			addToIntegerSum(other.integerSumHigh, other.integerSumLow);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		if (allIntegers)
+			return getIntegerSum().doubleValue();
+		return sum + compensation;
+	}
+
+	public double getMean() {
+		if (count == 0)
+			return Double.NaN;
+		if (allIntegers)
+			return new BigDecimal(getIntegerSum()).divide(BigDecimal.valueOf(count), MathContext.DECIMAL64).doubleValue();
+		return (sum + compensation) / count;
+	}
+
+	/**
+	 * Returns the standard deviation of all values, with Bessel's correction (dividing by count - 1) as for a sample
+	 */
+	public double getStandardDeviation() {
+		if (count < 2)
+			return Double.NaN;
+		return Math.sqrt(Math.max(0, m2) / (count - 1));
+	}
+
+	public double getMinimum() {
+		return minimum;
+	}
+
+	public double getMaximum() {
+		return maximum;
+	}
+
+	/**
+	 * Writes the statistics, as read by {@link #read(DataInput)}.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(count);
+		out.writeDouble(sum);
+		out.writeDouble(compensation);
+		out.writeDouble(mean);
+		out.writeDouble(m2);
+		out.writeDouble(minimum);
+		out.writeDouble(maximum);
+		out.writeBoolean(allIntegers);
+		out.writeLong(integerSumHigh);
+		out.writeLong(integerSumLow);
+	}
+
+	/**
+	 * Replaces the statistics by those written by {@link #write(DataOutput)}.
+	 */
+	public void read(DataInput in) throws IOException {
+		count = in.readLong();
+		sum = in.readDouble();
+		compensation = in.readDouble();
+		mean = in.readDouble();
+		m2 = in.readDouble();
+		minimum = in.readDouble();
+		maximum = in.readDouble();
+		allIntegers = in.readBoolean();
+		integerSumHigh = in.readLong();
+		integerSumLow = in.readLong();
+	}
+
+	private void addToSum(double value, double valueCompensation) {
+		double total = sum + value;
+		if (Math.abs(sum) >= Math.abs(value))
+			compensation += (sum - total) + value;
+		else
+			compensation += (value - total) + sum;
+		sum = total;
+		compensation += valueCompensation;
+	}
+
+	/**
+	 * Adds a 128-bit integer, given as its high and low 64 bits, to the integer sum.
+	 */
+	private void addToIntegerSum(long high, long low) {
+		long newLow = integerSumLow + low;
+		long carry = Long.compareUnsigned(newLow, integerSumLow) < 0 ? 1 : 0;
+		integerSumHigh += high + carry;
+		integerSumLow = newLow;
+	}
+
+	private BigInteger getIntegerSum() {
+		return BigInteger.valueOf(integerSumHigh).shiftLeft(64).add(new BigInteger(Long.toUnsignedString(integerSumLow)));
+	}
+}
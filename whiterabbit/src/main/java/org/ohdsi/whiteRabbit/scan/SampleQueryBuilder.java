@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import org.ohdsi.databases.DbType;
+
+/**
+ * Creates the queries that fetch a random sample of the rows of a database table, using the sampling clause of each
+ * database instead of sorting the whole table by a random number:
+ *
+ * <ul>
+ *     <li>PostgreSQL: TABLESAMPLE SYSTEM (pages) for small fractions, TABLESAMPLE BERNOULLI (rows) otherwise</li>
+ *     <li>Oracle: SAMPLE BLOCK for small fractions, SAMPLE otherwise</li>
+ *     <li>SQL Server and Azure: TABLESAMPLE, which samples pages, for small fractions, a random filter on the rows
+ *     otherwise</li>
+ *     <li>BigQuery: TABLESAMPLE SYSTEM for small fractions, a random filter on the rows otherwise</li>
+ *     <li>Teradata: SAMPLE, which returns the requested number of rows</li>
+ *     <li>MySQL, Redshift and PDW: a random filter on the rows, which scans the table but does not sort it</li>
+ *     <li>MS Access has no sampling, so the first rows are returned</li>
+ * </ul>
+ * Sampling pages (or blocks) only reads the sampled part of the table, but rows stored together are sampled together,
+ * and a small table may return no rows at all. It is therefore only used for fractions below
+ * BLOCK_SAMPLING_MAX_FRACTION, where a sample spans many pages, and callers can ask for row level sampling when a
+ * block sample came out short.
+ */
+public class SampleQueryBuilder {
+	public static double	BLOCK_SAMPLING_MAX_FRACTION	= 0.01;
+
+	private final DbType	dbType;
+
+	public SampleQueryBuilder(DbType dbType) {
+		this.dbType = dbType;
+	}
+
+	/**
+	 * Creates a query returning all rows of the table.
+	 */
+	public String createQuery(String table) {
+		return "SELECT * FROM " + getTableReference(table);
+	}
+
+	/**
+	 * Creates a query returning a random sample of the rows of the table.
+	 *
+	 * @param fraction
+	 *            the expected fraction of the rows in the sample. The sample size varies randomly around it
+	 * @param rowCount
+	 *            the number of rows wanted, for databases that sample a number of rows instead of a fraction
+	 * @param rowLevel
+	 *            whether rows should be sampled individually, instead of by page or block
+	 */
+	public String createSampleQuery(String table, double fraction, int rowCount, boolean rowLevel) {
+		if (fraction >= 1)
+			return createQuery(table);
+		String tableReference = getTableReference(table);
+		String percentage = formatPercentage(fraction);
+		String threshold = BigDecimal.valueOf(fraction).toPlainString();
+		boolean blockLevel = !rowLevel && fraction < BLOCK_SAMPLING_MAX_FRACTION;
+		if (dbType == DbType.POSTGRESQL)
+			return "SELECT * FROM " + tableReference + " TABLESAMPLE " + (blockLevel ? "SYSTEM" : "BERNOULLI") + " (" + percentage + ")";
+		else if (dbType == DbType.ORACLE)
+			return "SELECT * FROM " + tableReference + (blockLevel ? " SAMPLE BLOCK (" : " SAMPLE (") + percentage + ")";
+		else if (dbType == DbType.MSSQL || dbType == DbType.AZURE) {
+			if (blockLevel)
+				return "SELECT * FROM " + tableReference + " TABLESAMPLE (" + percentage + " PERCENT)";
+			return "SELECT * FROM " + tableReference + " WHERE RAND(CHECKSUM(NEWID())) < " + threshold;
+		} else if (dbType == DbType.PDW)
+			return "SELECT * FROM " + tableReference + " WHERE RAND(CHECKSUM(NEWID())) < " + threshold;
+		else if (dbType == DbType.BIGQUERY) {
+			if (blockLevel)
+				return "SELECT * FROM " + tableReference + " TABLESAMPLE SYSTEM (" + percentage + " PERCENT)";
+			return "SELECT * FROM " + tableReference + " WHERE RAND() < " + threshold;
+		} else if (dbType == DbType.TERADATA)
+			return "SELECT * FROM " + tableReference + " SAMPLE " + rowCount;
+		else if (dbType == DbType.MSACCESS)
+			return "SELECT TOP " + rowCount + " * FROM " + tableReference;
+		else if (dbType == DbType.MYSQL)
+			return "SELECT * FROM " + tableReference + " WHERE RAND() < " + threshold;
+		else
+			return "SELECT * FROM " + tableReference + " WHERE RANDOM() < " + threshold;
+	}
+
+	/**
+	 * Returns whether the sample query of the database returns about the given fraction of the rows, rather than a
+	 * fixed number of rows.
+	 */
+	public boolean samplesFraction() {
+		return dbType != DbType.TERADATA && dbType != DbType.MSACCESS;
+	}
+
+	private String getTableReference(String table) {
+		return getTableReference(dbType, table);
+	}
+
+	/**
+	 * Returns the reference to a table, which may include the schema, in the SQL dialect of the database.
+	 */
+	static String getTableReference(DbType dbType, String table) {
+		if (dbType == DbType.MSACCESS)
+			return "[" + table + "]";
+		else if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "[" + table.replaceAll("\\.", "].[") + "]";
+		else
+			return table;
+	}
+
+	/**
+	 * Formats the fraction as a percentage without exponent, rounded up to 6 decimals, as Oracle does not accept
+	 * smaller percentages.
+	 */
+	private static String formatPercentage(double fraction) {
+		BigDecimal percentage = BigDecimal.valueOf(fraction * 100).setScale(6, RoundingMode.UP).stripTrailingZeros();
+		return percentage.toPlainString();
+	}
+}
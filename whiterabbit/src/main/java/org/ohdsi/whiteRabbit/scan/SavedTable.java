@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ohdsi.rabbitInAHat.dataModel.Table;
+import org.ohdsi.whiteRabbit.scan.SourceDataScan.FieldInfo;
+
+/**
+ * The results of a table as saved in a record of the {@link ScanStateFile}: the fingerprint of the table, its name and
+ * comment, and its trimmed fields as they are reported. For an append-only scan, the record also holds the state of the
+ * fields before trimming, with a watermark telling how far the table was scanned, so the next scan can continue from
+ * there. The fields write and read themselves, which is why this class is only used by {@link SourceDataScan}.
+ */
+class SavedTable {
+
+	interface FieldReader {
+		FieldInfo read(DataInputStream in) throws IOException;
+	}
+
+	private final String			fingerprint;
+	private final Table				table;
+	private final List<FieldInfo>	fieldInfos;
+	private final byte[]			state;
+
+	private SavedTable(String fingerprint, Table table, List<FieldInfo> fieldInfos, byte[] state) {
+		this.fingerprint = fingerprint;
+		this.table = table;
+		this.fieldInfos = fieldInfos;
+		this.state = state;
+	}
+
+	/**
+	 * Writes the state of the fields, from which a later scan can continue. The fields must not have been trimmed.
+	 *
+	 * @param watermark
+	 *            description of how far the table was scanned
+	 */
+	static byte[] createState(String watermark, List<FieldInfo> fieldInfos) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ScanStateFile.writeString(out, watermark);
+		for (FieldInfo fieldInfo : fieldInfos)
+			fieldInfo.writeState(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the record of a table. The fields must have been trimmed.
+	 *
+	 * @param state
+	 *            the state created by {@link #createState(String, List)} before the fields were trimmed, or null
+	 */
+	static void write(DataOutputStream out, String fingerprint, Table table, List<FieldInfo> fieldInfos, byte[] state) throws IOException {
+		ScanStateFile.writeString(out, fingerprint);
+		ScanStateFile.writeString(out, table.getName());
+		ScanStateFile.writeString(out, table.getComment());
+		out.writeInt(fieldInfos.size());
+		for (FieldInfo fieldInfo : fieldInfos)
+			fieldInfo.write(out);
+		out.writeBoolean(state != null);
+		if (state != null)
+			out.write(state);
+	}
+
+	/**
+	 * Reads the record of a table, as written by {@link #write(DataOutputStream, String, Table, List, byte[])}.
+	 *
+	 * @param reader
+	 *            creates a field from what {@link FieldInfo#write(DataOutputStream)} wrote
+	 */
+	static SavedTable read(byte[] record, FieldReader reader) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		String fingerprint = ScanStateFile.readString(in);
+		Table table = new Table();
+		table.setName(ScanStateFile.readString(in));
+		table.setComment(ScanStateFile.readString(in));
+		int fieldCount = in.readInt();
+		List<FieldInfo> fieldInfos = new ArrayList<>(fieldCount);
+		for (int i = 0; i < fieldCount; i++)
+			fieldInfos.add(reader.read(in));
+		byte[] state = null;
+		if (in.readBoolean()) {
+			state = new byte[in.available()];
+			in.readFully(state);
+		}
+		return new SavedTable(fingerprint, table, fieldInfos, state);
+	}
+
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	Table getTable() {
+		return table;
+	}
+
+	/**
+	 * @return the trimmed fields, as they are reported
+	 */
+	List<FieldInfo> getFieldInfos() {
+		return fieldInfos;
+	}
+
+	/**
+	 * Loads the saved state of the fields into the given fields, if it was saved for fields with the same names.
+	 *
+	 * @return the watermark saved with the state, or null if there is no state for these fields, in which case the given
+	 *         fields are not changed
+	 */
+	String loadState(List<FieldInfo> targetFieldInfos) throws IOException {
+		if (state == null || fieldInfos.size() != targetFieldInfos.size())
+			return null;
+		for (int i = 0; i < fieldInfos.size(); i++)
+			if (!fieldInfos.get(i).name.equals(targetFieldInfos.get(i).name))
+				return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+		String watermark = ScanStateFile.readString(in);
+		for (FieldInfo fieldInfo : targetFieldInfos)
+			fieldInfo.readState(in);
+		return watermark;
+	}
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * File in which the results of a scan are saved table by table, so they can be used again by a later scan with the
+ * same settings, for instance to resume a scan that was interrupted. The file starts with a description of the scan
+ * settings, followed by one record per table, identified by a key. Every record is compressed and has a checksum, and
+ * is written at once, so a record that was only partly written when the scan was interrupted is recognised and dropped.
+ */
+public class ScanStateFile {
+	private static final int	MAGIC	= 0x57525354;	// "WRST"
+	private static final int	VERSION	= 1;
+	// Key of the record that marks a scan that was completed. Keys of other records are never empty
+	private static final String	COMPLETED_KEY	= "";
+
+	public interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private final File			file;
+	private FileOutputStream	out;
+	private long				fileLength;
+	private boolean				completed;
+
+	public ScanStateFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns whether the scan that wrote the records returned by {@link #open(String, boolean)} was completed, as marked
+	 * by {@link #markCompleted()}.
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Opens the file to append records to.
+	 *
+	 * @param settings
+	 *            description of the settings of the scan
+	 * @param keepRecords
+	 *            whether to keep the records of an existing file that was written for the same settings. Of records with
+	 *            the same key, only the last one is kept. Otherwise an existing file is replaced by an empty one
+	 * @return the contents of the records that were kept, by key. The mark of a completed scan is not kept, the scan
+	 *         that opens the file has to mark it again
+	 */
+	public Map<String, byte[]> open(String settings, boolean keepRecords) throws IOException {
+		Map<String, byte[]> records = new LinkedHashMap<>();
+		if (keepRecords && file.exists())
+			readRecords(settings, records);
+		completed = records.remove(COMPLETED_KEY) != null;
+
+		// The kept records are written to a new file that replaces the old one at once, so these are not lost if the
+		// scan is interrupted while doing this
+		File newFile = new File(file.getPath() + ".tmp");
+		out = new FileOutputStream(newFile);
+		byte[] settingsBytes = settings.getBytes(StandardCharsets.UTF_8);
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeInt(settingsBytes.length);
+		header.write(settingsBytes);
+		header.flush();
+		for (Map.Entry<String, byte[]> record : records.entrySet())
+			writeRecord(record.getKey(), record.getValue());
+		out.getFD().sync();
+		out.close();
+		try {
+			Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		out = new FileOutputStream(file, true);
+		return records;
+	}
+
+	/**
+	 * Appends a record, and writes it to disk before returning. A record with the same key replaces an earlier one when
+	 * the file is opened again.
+	 */
+	public synchronized void append(String key, RecordWriter writer) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream recordOut = new DataOutputStream(bytes);
+		writer.write(recordOut);
+		recordOut.flush();
+		writeRecord(key, bytes.toByteArray());
+		out.flush();
+		out.getFD().sync();
+	}
+
+	/**
+	 * Appends the record that marks the scan as completed, to be called after the last table was saved.
+	 */
+	public void markCompleted() throws IOException {
+		append(COMPLETED_KEY, out -> {
+		});
+	}
+
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private void writeRecord(String key, byte[] contents) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream recordOut = new DataOutputStream(bytes);
+		writeString(recordOut, key);
+		recordOut.write(contents);
+		recordOut.flush();
+		byte[] record = bytes.toByteArray();
+
+		Deflater deflater = new Deflater();
+		deflater.setInput(record);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		while (!deflater.finished())
+			compressed.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(compressed.toByteArray());
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream frameOut = new DataOutputStream(frame);
+		frameOut.writeInt(compressed.size());
+		frameOut.writeInt(record.length);
+		frameOut.writeInt((int) crc.getValue());
+		compressed.writeTo(frameOut);
+		frameOut.flush();
+		out.write(frame.toByteArray());
+	}
+
+	/**
+	 * Reads the records of the file if it was written for the given settings, up to the first record that is incomplete
+	 * or damaged.
+	 */
+	private void readRecords(String settings, Map<String, byte[]> records) throws IOException {
+		fileLength = file.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return;
+			byte[] settingsBytes = new byte[in.readInt()];
+			if (settingsBytes.length > fileLength)
+				return;
+			in.readFully(settingsBytes);
+			if (!new String(settingsBytes, StandardCharsets.UTF_8).equals(settings))
+				return;
+			byte[] record;
+			while ((record = readRecord(in)) != null) {
+				DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+				String key = readString(recordIn);
+				records.remove(key);
+				records.put(key, Arrays.copyOfRange(record, record.length - recordIn.available(), record.length));
+			}
+		} catch (EOFException e) {
+			// An incomplete header
+		}
+	}
+
+	/**
+	 * Reads the next record, or returns null at the end of the file or at a record that is incomplete or damaged.
+	 */
+	private byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int compressedLength = in.readInt();
+			int length = in.readInt();
+			int checksum = in.readInt();
+			// A damaged length could otherwise cause an enormous allocation
+			if (compressedLength < 0 || length < 0 || compressedLength > fileLength)
+				return null;
+			byte[] compressed = new byte[compressedLength];
+			in.readFully(compressed);
+			CRC32 crc = new CRC32();
+			crc.update(compressed);
+			if ((int) crc.getValue() != checksum)
+				return null;
+			Inflater inflater = new Inflater();
+			inflater.setInput(compressed);
+			byte[] record = new byte[length];
+			int inflated = inflater.inflate(record);
+			inflater.end();
+			if (inflated != length)
+				return null;
+			return record;
+		} catch (EOFException | DataFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a string that can be longer than {@link DataOutput#writeUTF(String)} allows, or null.
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
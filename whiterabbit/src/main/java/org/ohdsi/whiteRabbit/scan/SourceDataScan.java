@@ -18,11 +18,20 @@
 package org.ohdsi.whiteRabbit.scan;
 
 import java.io.*;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Collectors;
 
 import com.epam.parso.Column;
@@ -33,16 +42,21 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.ohdsi.databases.DbType;
 import org.ohdsi.databases.RichConnection;
-import org.ohdsi.databases.RichConnection.QueryResult;
+import org.ohdsi.databases.RichConnection.ArrayQueryResult;
+import org.ohdsi.databases.SchemaMetadata;
 import org.ohdsi.rabbitInAHat.dataModel.Table;
 import org.ohdsi.utilities.*;
-import org.ohdsi.utilities.collections.CountingSet;
-import org.ohdsi.utilities.collections.CountingSet.Count;
+import org.ohdsi.utilities.collections.HyperLogLog;
 import org.ohdsi.utilities.collections.Pair;
+import org.ohdsi.utilities.collections.SpaceSavingCounter;
+import org.ohdsi.utilities.collections.StringCountingSet;
 import org.ohdsi.utilities.files.ReadTextFile;
+import org.ohdsi.utilities.files.ScanResultReader;
+import org.ohdsi.utilities.files.ScanResultWriter;
 import org.ohdsi.whiteRabbit.DbSettings;
 
 import static java.lang.Long.max;
@@ -53,20 +67,53 @@ public class SourceDataScan {
 	public static int	MIN_CELL_COUNT_FOR_CSV				= 1000000;
 	public static int	N_FOR_FREE_TEXT_CHECK				= 1000;
 	public static int	MIN_AVERAGE_LENGTH_FOR_FREE_TEXT	= 100;
-
-	private SXSSFWorkbook workbook;
+	public static int	HEAVY_HITTERS_CAPACITY				= 10000;
+	public static long	MIN_CSV_CHUNK_SIZE					= 16 * 1024 * 1024;
+	public static int	QUANTILE_SKETCH_K					= KllQuantileSketch.DEFAULT_K;
+	public static int	SAMPLE_BLOCK_ROWS					= 100;
+	public static double	SAMPLE_OVERSAMPLING					= 1.1;
+	public static int	MAX_SAMPLE_ATTEMPTS					= 3;
+	public static int	FINGERPRINT_BYTES					= 65536;
+
+	private ScanResultWriter resultWriter;
+	private boolean xlsxReport = true;
 	private char delimiter = ',';
 	private int sampleSize;
 	private boolean scanValues = false;
 	private boolean calculateNumericStats = false;
 	private int numStatsSamplerSize;
+	private QuantileMethod quantileMethod = QuantileMethod.RESERVOIR;
+	private boolean extraPercentiles = false;
 	private int minCellCount;
 	private int maxValues;
+	private int threadCount = 1;
+	private int columnThreadCount = 1;
+	private int csvChunkCount = 1;
+	private FileSamplingMethod fileSamplingMethod = FileSamplingMethod.FIRST_ROWS;
+	private KeySampler keySampler = null;
+	private RowCountMode rowCountMode = RowCountMode.EXACT;
+	private RowCountProvider rowCountProvider;
+	private SchemaMetadata schemaMetadata;
+	private boolean resume = false;
+	private boolean incremental = false;
+	private boolean appendOnly = false;
+	private String watermarkColumn = null;
+	private boolean mergeAppendedRows;
+	private ScanStateFile stateFile;
+	private Map<String, byte[]> savedTables;
+	private List<String> reusedTables;
+	private List<String> appendOnlyFallbacks;
+	private ValueCountingStrategy valueCountingStrategy = ValueCountingStrategy.TRIM;
+	private int fetchSize = RichConnection.DEFAULT_FETCH_SIZE;
+	private boolean pushDownProfiling = false;
+	private List<String> dateFormats = new ArrayList<>();
+	private DateUtilities dateUtilities = new DateUtilities(dateFormats);
 	private DbSettings.SourceType sourceType;
 	private DbType dbType;
 	private String database;
-	private Map<Table, List<FieldInfo>> tableToFieldInfos;
-	private Map<String, String> indexedTableNameLookup;
+	private List<String> fieldOverviewHeader;
+	private List<String> tableOverviewHeader;
+	private int reportedTableCount;
 
 	private LocalDateTime startTimeStamp;
 
@@ -95,114 +142,646 @@ public class SourceDataScan {
 		this.numStatsSamplerSize = numStatsSamplerSize;
 	}
 
+	/**
+	 * Sets how quantiles are estimated for the numeric statistics. With a sketch, the number of values kept is set by
+	 * QUANTILE_SKETCH_K instead of the sampler size.
+	 */
+	public void setQuantileMethod(QuantileMethod quantileMethod) {
+		this.quantileMethod = quantileMethod;
+	}
+
+	/**
+	 * Sets whether the 1st, 5th, 95th and 99th percentiles are reported in the numeric statistics, besides the quartiles.
+	 */
+	public void setExtraPercentiles(boolean extraPercentiles) {
+		this.extraPercentiles = extraPercentiles;
+	}
+
+	/**
+	 * Sets the number of tables (or files) that are scanned in parallel. Every worker scanning a database table uses its
+	 * own connection.
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Sets the number of threads profiling the values of a single table. With more than one thread, one thread reads
+	 * the rows and hands batches to workers that each own a subset of the columns.
+	 */
+	public void setColumnThreadCount(int columnThreadCount) {
+		this.columnThreadCount = Math.max(1, columnThreadCount);
+	}
+
+	/**
+	 * Sets the number of chunks a delimited text file is split into, to scan the chunks of a single file in parallel.
+	 * Files are only split when all rows are scanned, and chunks are at least MIN_CSV_CHUNK_SIZE bytes.
+	 */
+	public void setCsvChunkCount(int csvChunkCount) {
+		this.csvChunkCount = Math.max(1, csvChunkCount);
+	}
+
+	/**
+	 * Sets how the rows of delimited text files and SAS files are chosen when not all rows are scanned. With random
+	 * blocks, every block holds SAMPLE_BLOCK_ROWS rows.
+	 */
+	public void setFileSamplingMethod(FileSamplingMethod fileSamplingMethod) {
+		this.fileSamplingMethod = fileSamplingMethod;
+	}
+
+	/**
+	 * Sets a key column (for instance person_id) to sample tables by: of every table with that column, the rows of the
+	 * same fraction of the keys are scanned, so the scanned rows of different tables can be joined. These tables are
+	 * not limited to the sample size. Tables without the column are sampled as usual. Not used when profiling in the
+	 * database.
+	 *
+	 * @param keyColumn the name of the key column, or an empty string to not sample by key
+	 */
+	public void setKeySampling(String keyColumn, double fraction) {
+		this.keySampler = keyColumn == null || keyColumn.trim().isEmpty() ? null : new KeySampler(keyColumn.trim(), fraction);
+	}
+
+	/**
+	 * Sets how the number of rows of database tables is determined. Estimates are taken from the statistics of the
+	 * database, which avoids reading large tables just to count them. The report shows for every table whether its
+	 * row count is exact or an estimate.
+	 */
+	public void setRowCountMode(RowCountMode rowCountMode) {
+		this.rowCountMode = rowCountMode;
+	}
+
+	/**
+	 * Sets the tables and columns of the database to scan, if these have already been loaded, for instance to pick the
+	 * tables. Otherwise these are loaded at the start of the scan.
+	 */
+	public void setSchemaMetadata(SchemaMetadata schemaMetadata) {
+		this.schemaMetadata = schemaMetadata;
+	}
+
+	/**
+	 * Sets how value frequencies are counted for fields with more than MAX_VALUES_IN_MEMORY distinct values.
+	 */
+	public void setValueCountingStrategy(ValueCountingStrategy valueCountingStrategy) {
+		this.valueCountingStrategy = valueCountingStrategy;
+	}
+
+	/**
+	 * Sets the number of rows fetched from the database at a time. This bounds the memory used by the database driver
+	 * when scanning all rows of a table.
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Sets whether database tables are profiled with aggregate queries in the database, instead of by fetching rows.
+	 * The statistics then cover all rows of a table, and free text fields are not split into words. Not supported for
+	 * MS Access, which is always scanned by fetching rows.
+	 */
+	public void setPushDownProfiling(boolean pushDownProfiling) {
+		this.pushDownProfiling = pushDownProfiling;
+	}
+
+	/**
+	 * Sets additional date patterns (for instance dd.MM.yyyy) that values are recognised as dates by, besides the
+	 * built-in yyyy-MM-dd, MM-dd-yy and ISO timestamp layouts.
+	 */
+	public void setDateFormats(List<String> dateFormats) {
+		this.dateFormats = dateFormats;
+		this.dateUtilities = new DateUtilities(dateFormats);
+	}
+
+	/**
+	 * Sets whether to resume a scan that was interrupted. The results of every scanned table are saved in a state file
+	 * next to the report. When resuming, the tables saved by an earlier run of a scan with the same settings are taken
+	 * from that file instead of being scanned again.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Sets whether to only scan the tables that changed since the last scan with the same settings. Before a table is
+	 * scanned, a fingerprint is taken: the row count and columns of a database table, or the size, modification time
+	 * and a checksum of the first and last FINGERPRINT_BYTES of a file. If it equals the fingerprint saved in the state
+	 * file with the results of the last scan, those results are reused.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Sets whether the tables only grow by appending rows. The mergeable state of every field (value counts, sketches
+	 * and moments) is then saved in the state file, and the next scan with the same settings only reads the rows added
+	 * since, and merges them into that state: the rows of a database table with a value in the watermark column above
+	 * the highest value seen before, or the bytes of a file after the saved offset. Only used when all rows are scanned,
+	 * without sampling by key or push-down profiling.
+	 */
+	public void setAppendOnly(boolean appendOnly) {
+		this.appendOnly = appendOnly;
+	}
+
+	/**
+	 * Sets the column that tells which rows of a database table are new when the tables are append-only, such as a load
+	 * date or an increasing surrogate key. Matched case-insensitively. Tables without it are scanned in full.
+	 */
+	public void setWatermarkColumn(String watermarkColumn) {
+		this.watermarkColumn = watermarkColumn == null || watermarkColumn.trim().isEmpty() ? null : watermarkColumn.trim();
+	}
+
+	/**
+	 * Sets whether to export the scan report as an Excel file. The results are always written to a scan result file
+	 * next to the report, from which the Excel file is exported. Rabbit-in-a-Hat can open either, but writing the Excel
+	 * file takes long for large scans, and reading one table from it means parsing the whole file.
+	 */
+	public void setXlsxReport(boolean xlsxReport) {
+		this.xlsxReport = xlsxReport;
+	}
+
 	public void process(DbSettings dbSettings, String outputFileName) {
 		startTimeStamp = LocalDateTime.now();
 		sourceType = dbSettings.sourceType;
 		dbType = dbSettings.dbType;
 		database = dbSettings.database;
+		delimiter = dbSettings.delimiter;
 
-		tableToFieldInfos = new HashMap<>();
-		StringUtilities.outputWithTime("Started new scan of " + dbSettings.tables.size() + " tables...");
-		if (sourceType == DbSettings.SourceType.CSV_FILES) {
-			if (!scanValues)
-				this.minCellCount = Math.max(minCellCount, MIN_CELL_COUNT_FOR_CSV);
-			processCsvFiles(dbSettings);
-		} else if (sourceType == DbSettings.SourceType.SAS_FILES) {
-			processSasFiles(dbSettings);
-		} else {
-			processDatabase(dbSettings);
+		mergeAppendedRows = appendOnly && scanValues && sampleSize == -1 && keySampler == null && !pushDownProfiling;
+		if (appendOnly && !mergeAppendedRows)
+			StringUtilities.outputWithTime("Appended rows can only be merged when scanning all rows, without sampling by key or push-down profiling, scanning tables in full");
+
+		startReport(outputFileName);
+		try {
+			openStateFile(outputFileName);
+			StringUtilities.outputWithTime("Started new scan of " + dbSettings.tables.size() + " tables...");
+			boolean completed = false;
+			try {
+				if (sourceType == DbSettings.SourceType.CSV_FILES) {
+					if (!scanValues)
+						this.minCellCount = Math.max(minCellCount, MIN_CELL_COUNT_FOR_CSV);
+					processCsvFiles(dbSettings);
+				} else if (sourceType == DbSettings.SourceType.SAS_FILES) {
+					processSasFiles(dbSettings);
+				} else {
+					processDatabase(dbSettings);
+				}
+				completed = true;
+			} finally {
+				closeStateFile(completed);
+			}
+
+			finishReport(outputFileName);
+		} finally {
+			// Deletes the incomplete scan result file if the scan failed, the file of a finished scan is kept
+			resultWriter.abort();
 		}
+	}
 
-		generateReport(outputFileName);
+	/**
+	 * Opens the file in which the results are saved table by table. When resuming, scanning incrementally or merging
+	 * appended rows, the results saved by earlier runs of a scan with the same settings are kept, to be reused by
+	 * {@link #reuseSavedTable(String, String)} or {@link #loadSavedState(String, List)}.
+	 */
+	private void openStateFile(String outputFileName) {
+		stateFile = new ScanStateFile(new File(outputFileName.replaceAll("\\.xlsx$", "") + ".scanstate"));
+		reusedTables = Collections.synchronizedList(new ArrayList<>());
+		appendOnlyFallbacks = Collections.synchronizedList(new ArrayList<>());
+		try {
+			savedTables = stateFile.open(describeScanSettings(), resume || incremental || mergeAppendedRows);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		if ((resume || incremental || mergeAppendedRows) && savedTables.isEmpty())
+			StringUtilities.outputWithTime("No results of a scan with the same settings found in " + stateFile.getFile() + ", starting a new scan");
+		else if (resume && !incremental && stateFile.isCompleted())
+			StringUtilities.outputWithTime("The last scan with the same settings was completed, so there is nothing to resume, starting a new scan");
 	}
 
-	private void processDatabase(DbSettings dbSettings) {
-		// GBQ requires database. Put database value into domain var
-		if (dbSettings.dbType == DbType.BIGQUERY) {
-			dbSettings.domain = dbSettings.database;
+	/**
+	 * Closes the state file. After a completed scan, the file is deleted, as it holds values of the source data, unless
+	 * a later incremental or append-only scan needs it. Then it is marked as written by a completed scan, so a later
+	 * scan does not resume it.
+	 */
+	private void closeStateFile(boolean completed) {
+		try {
+			boolean keep = incremental || appendOnly;
+			if (completed && keep)
+				stateFile.markCompleted();
+			stateFile.close();
+			if (completed && !keep)
+				stateFile.getFile().delete();
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
 		}
+	}
+
+	/**
+	 * Describes the settings that change the results of a scan. Saved results can only be reused by a scan with the
+	 * same settings.
+	 */
+	private String describeScanSettings() {
+		return String.join("\n",
+				"version=" + Version.getVersion(this.getClass()),
+				"sourceType=" + sourceType,
+				"dbType=" + (dbType != null ? dbType.getTypeName() : ""),
+				"database=" + database,
+				"delimiter=" + delimiter,
+				"sampleSize=" + sampleSize,
+				"scanValues=" + scanValues,
+				"maxValues=" + maxValues,
+				"calculateNumericStats=" + calculateNumericStats,
+				"numStatsSamplerSize=" + numStatsSamplerSize,
+				"quantileMethod=" + quantileMethod,
+				"QUANTILE_SKETCH_K=" + QUANTILE_SKETCH_K,
+				"extraPercentiles=" + extraPercentiles,
+				"fileSamplingMethod=" + fileSamplingMethod,
+				"samplingKey=" + (keySampler != null ? keySampler.getKeyColumn() + ";" + keySampler.getFraction() : ""),
+				"rowCountMode=" + rowCountMode,
+				"valueCountingStrategy=" + valueCountingStrategy,
+				"pushDownProfiling=" + pushDownProfiling,
+				"watermarkColumn=" + (appendOnly && watermarkColumn != null ? watermarkColumn : ""),
+				"dateFormats=" + String.join(";", dateFormats));
+	}
 
-		try (RichConnection connection = new RichConnection(dbSettings.server, dbSettings.domain, dbSettings.user, dbSettings.password, dbSettings.dbType)) {
-			connection.setVerbose(false);
-			connection.use(dbSettings.database);
+	/**
+	 * Saves the results of a scanned table in the state file, and adds the table to the report.
+	 *
+	 * @param source
+	 *            the table or file as listed in the tables to scan
+	 * @param fingerprint
+	 *            the fingerprint of the table, for a later incremental scan
+	 */
+	private void completeTable(String source, String fingerprint, Table table, List<FieldInfo> fieldInfos) {
+		completeTable(source, fingerprint, table, fieldInfos, null);
+	}
 
-			tableToFieldInfos = dbSettings.tables.stream()
-					.collect(Collectors.toMap(
-							Table::new,
-							table -> processDatabaseTable(table, connection)
-					));
+	/**
+	 * Saves the results of a scanned table in the state file, and adds the table to the report.
+	 *
+	 * @param watermark
+	 *            if not null, the fields have not been trimmed yet, and their mergeable state is saved as well, with
+	 *            this description of how far the table was scanned, so the next scan can continue from there
+	 */
+	private void completeTable(String source, String fingerprint, Table table, List<FieldInfo> fieldInfos, String watermark) {
+		byte[] state = null;
+		if (watermark != null) {
+			try {
+				state = SavedTable.createState(watermark, fieldInfos);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			for (FieldInfo fieldInfo : fieldInfos)
+				fieldInfo.trim();
+		}
+		byte[] savedState = state;
+		try {
+			stateFile.append(source, out -> SavedTable.write(out, fingerprint, table, fieldInfos, savedState));
+		} catch (IOException e) {
+			// The scan can go on, only it cannot be resumed without scanning this table again
+			System.out.println("Unable to save the results of " + source + ": " + e.getMessage());
 		}
+		reportTable(table, fieldInfos);
 	}
 
-	private void processCsvFiles(DbSettings dbSettings) {
-		delimiter = dbSettings.delimiter;
-		for (String fileName : dbSettings.tables) {
-			Table table = new Table();
-			table.setName(new File(fileName).getName());
-			List<FieldInfo> fieldInfos = processCsvFile(fileName);
-			tableToFieldInfos.put(table, fieldInfos);
-		}
+	/**
+	 * Adds the saved results of a table to the report, if there are any that can be reused: when resuming any saved
+	 * results of a scan that was not completed, when scanning incrementally only results saved with the same
+	 * fingerprint.
+	 *
+	 * @param source
+	 *            the table or file as listed in the tables to scan
+	 * @return whether the saved results were reused, so the table does not have to be scanned
+	 */
+	private boolean reuseSavedTable(String source, String fingerprint) throws IOException {
+		byte[] saved = savedTables.get(source);
+		if (saved == null || !(incremental || (resume && !stateFile.isCompleted())))
+			return false;
+		SavedTable savedTable = SavedTable.read(saved, FieldInfo::new);
+		if (incremental && !savedTable.getFingerprint().equals(fingerprint))
+			return false;
+		StringUtilities.outputWithTime("Reusing the saved results of " + source);
+		reportTable(savedTable.getTable(), savedTable.getFieldInfos());
+		reusedTables.add(source);
+		return true;
 	}
 
-	private void processSasFiles(DbSettings dbSettings) {
-		for (String fileName : dbSettings.tables) {
-			try(FileInputStream inputStream = new FileInputStream(new File(fileName))) {
-				SasFileReader sasFileReader = new SasFileReaderImpl(inputStream);
-				SasFileProperties sasFileProperties = sasFileReader.getSasFileProperties();
+	/**
+	 * Loads the mergeable state of the fields of a table saved by the last scan into the given field infos, if it was
+	 * saved for the same fields.
+	 *
+	 * @return the watermark saved with the state, or null if there is no saved state, in which case the field infos are
+	 *         not changed
+	 */
+	private String loadSavedState(String source, List<FieldInfo> fieldInfos) throws IOException {
+		byte[] saved = savedTables.get(source);
+		if (saved == null)
+			return null;
+		return SavedTable.read(saved, FieldInfo::new).loadState(fieldInfos);
+	}
 
-				Table table = new Table(new File(fileName).getName());
-				table.setName(new File(fileName).getName());
-				table.setComment(sasFileProperties.getName());
+	/**
+	 * Scans the rows of a database table that were added since the last scan, those with a value in the watermark column
+	 * above the highest value seen then, and merges them into the saved state of the fields. Without a saved state, or
+	 * with one saved for another watermark column, all rows are scanned.
+	 *
+	 * @return the untrimmed field infos and the new watermark, which is the name of the watermark column and its highest
+	 *         value separated by a line break, or null if the table has to be scanned in full instead
+	 */
+	private Pair<List<FieldInfo>, String> processAppendedDatabaseRows(String table, RichConnection connection) {
+		List<FieldInfo> fieldInfos = fetchTableStructure(table);
+		int watermarkIndex = -1;
+		for (int i = 0; i < fieldInfos.size(); i++)
+			if (fieldInfos.get(i).name.equalsIgnoreCase(watermarkColumn))
+				watermarkIndex = i;
+		if (watermarkIndex == -1)
+			return null;
+		String columnName = fieldInfos.get(watermarkIndex).name;
+		String columnType = fieldInfos.get(watermarkIndex).type;
+		try {
+			String savedWatermark = loadSavedState(table, fieldInfos);
+			if (savedWatermark != null) {
+				int separator = savedWatermark.indexOf('\n');
+				if (separator != -1 && savedWatermark.substring(0, separator).equals(columnName)) {
+					savedWatermark = savedWatermark.substring(separator + 1);
+				} else {
+					StringUtilities.outputWithTime("The last scan of " + table + " used another watermark column, scanning it in full");
+					fieldInfos = fetchTableStructure(table);
+					savedWatermark = null;
+				}
+			}
+			RowCountProvider.RowCount rowCount = rowCountProvider.getRowCount(connection, table);
+			for (FieldInfo fieldInfo : fieldInfos) {
+				fieldInfo.rowCount = rowCount.count;
+				fieldInfo.rowCountType = rowCount.getType();
+			}
 
-				StringUtilities.outputWithTime("Scanning table " + fileName);
-				List<FieldInfo> fieldInfos = processSasFile(sasFileReader);
-				tableToFieldInfos.put(table, fieldInfos);
+			// Rows added while scanning are above the new watermark, so they are left for the next scan
+			ProfileQueryBuilder queryBuilder = new ProfileQueryBuilder(dbType);
+			String column = queryBuilder.getColumnReference(columnName);
+			String watermark = queryFirstRow(connection, "SELECT MAX(" + column + ") FROM " + queryBuilder.getTableReference(table))[0];
+			String query = new SampleQueryBuilder(dbType).createQuery(table);
+			if (savedWatermark != null) {
+				StringUtilities.outputWithTime("Scanning rows of " + table + " with " + watermarkColumn + " after " + savedWatermark);
+				if (watermark.isEmpty())
+					watermark = savedWatermark;
+				query += " WHERE " + column + " > " + createLiteral(savedWatermark, columnType) + " AND " + column + " <= " + createLiteral(watermark, columnType);
+			} else {
+				StringUtilities.outputWithTime("Scanning table " + table);
+				if (!watermark.isEmpty())
+					query += " WHERE " + column + " <= " + createLiteral(watermark, columnType) + " OR " + column + " IS NULL";
+			}
 
-			} catch (IOException e) {
-				e.printStackTrace();
+			ColumnPipeline pipeline = createPipeline(fieldInfos);
+			try {
+				fetchRowsFromTable(connection, query, fieldInfos, pipeline::add, -1);
+			} finally {
+				pipeline.close();
+			}
+			reportThroughput(table, pipeline);
+			if (watermark.isEmpty()) {
+				// Without a watermark the next scan cannot tell which rows are new
+				for (FieldInfo fieldInfo : fieldInfos)
+					fieldInfo.trim();
+				return new Pair<>(fieldInfos, null);
 			}
+			return new Pair<>(fieldInfos, columnName + "\n" + watermark);
+		} catch (Exception e) {
+			// Reported on the Meta sheet, as it would otherwise go unnoticed that every run scans the table in full
+			System.out.println("Error: " + e.getMessage() + ", scanning " + table + " in full");
+			appendOnlyFallbacks.add(table + ": " + e.getMessage());
+			return null;
 		}
 	}
 
-	private void generateReport(String filename) {
-		StringUtilities.outputWithTime("Generating scan report");
-		removeEmptyTables();
+	/**
+	 * Writes a watermark value as an SQL literal of the type of the watermark column: dates and timestamps as typed
+	 * literals, so they are not compared as text, numbers as they are, and other values as text.
+	 *
+	 * @param type
+	 *            the type of the column as reported by the database
+	 */
+	private String createLiteral(String value, String type) {
+		String lowerType = type == null ? "" : type.toLowerCase();
+		boolean isTimestamp = lowerType.contains("timestamp") || lowerType.contains("datetime") || (lowerType.equals("date") && dbType == DbType.ORACLE);
+		boolean isDate = !isTimestamp && lowerType.equals("date");
+		if (!isTimestamp && !isDate && value.matches("-?[0-9]+(\\.[0-9]+)?"))
+			return value;
+		// A timestamp at midnight is returned as the date with the fraction of a second
+		value = value.replaceAll("^([0-9]{4}-[0-9]{2}-[0-9]{2})\\.0+$", "$1");
+		if (isDate)
+			value = value.replaceAll("^([0-9]{4}-[0-9]{2}-[0-9]{2}).*$", "$1");
+		else if (isTimestamp)
+			value = value.replaceAll("^([0-9]{4}-[0-9]{2}-[0-9]{2})$", "$1 00:00:00");
+		String text = "'" + value.replace("'", "''") + "'";
+		if (!isTimestamp && !isDate)
+			return text;
+		if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
+			return "CAST(" + text + " AS " + (isDate ? "DATE" : "DATETIME2") + ")";
+		else if (dbType == DbType.MSACCESS)
+			return text;
+		else if (dbType == DbType.BIGQUERY)
+			return type.toUpperCase() + " " + text;
+		else
+			return (isDate ? "DATE " : "TIMESTAMP ") + text;
+	}
+
+	/**
+	 * Scans the lines appended to a delimited text file since the last scan, and merges them into the saved state of the
+	 * fields. The file is scanned in full if there is no saved state, or if the bytes before the saved offset changed.
+	 *
+	 * @param fingerprintedSize
+	 *            the size of the file when it was fingerprinted. If the file has grown since, a last line without a line
+	 *            break may still be being written, and is left for the next scan
+	 * @return the untrimmed field infos and the new watermark, which is the offset up to which the file was scanned with
+	 *         a checksum of the bytes before it, or null if the file has no header
+	 */
+	private Pair<List<FieldInfo>, String> processAppendedCsvRows(String filename, long fingerprintedSize) throws IOException {
+		List<FieldInfo> fieldInfos = new ArrayList<>();
+		long start;
+		try (MappedCsvReader reader = new MappedCsvReader(filename, delimiter)) {
+			if (!reader.next())
+				return null;
+			for (int i = 0; i < reader.getCellCount(); i++)
+				fieldInfos.add(new FieldInfo(reader.getCell(i).toString()));
+			start = reader.getPosition();
+		}
+		String savedWatermark = loadSavedState(filename, fieldInfos);
+		if (savedWatermark != null) {
+			long savedEnd = FileFingerprints.getWatermarkOffset(savedWatermark);
+			if (savedWatermark.equals(FileFingerprints.createWatermark(filename, savedEnd))) {
+				start = savedEnd;
+			} else {
+				StringUtilities.outputWithTime(filename + " was changed before the end of the last scan, scanning it in full");
+				for (int i = 0; i < fieldInfos.size(); i++)
+					fieldInfos.set(i, new FieldInfo(fieldInfos.get(i).name));
+				savedWatermark = null;
+			}
+		}
+
+		long end = FileFingerprints.findEndOfScan(filename, start, fingerprintedSize);
+		if (savedWatermark == null)
+			StringUtilities.outputWithTime("Scanning table " + filename);
+		else
+			StringUtilities.outputWithTime("Scanning " + (end - start) + " bytes appended to " + filename);
+		long[] chunkStarts = MappedCsvReader.findLineStarts(filename, start, end, csvChunkCount, MIN_CSV_CHUNK_SIZE);
+		scanCsvChunks(filename, fieldInfos, chunkStarts, -1);
+		return new Pair<>(fieldInfos, FileFingerprints.createWatermark(filename, end));
+	}
 
-		workbook = new SXSSFWorkbook(100); // keep 100 rows in memory, exceeding rows will be flushed to disk
+	/**
+	 * Fingerprints a database table by its row count and columns.
+	 */
+	private String fingerprintDatabaseTable(String table, RichConnection connection) {
+		List<SchemaMetadata.Column> columns = schemaMetadata.getColumns(table);
+		if (columns == null)
+			return "";
+		StringBuilder fingerprint = new StringBuilder("rows=" + rowCountProvider.getRowCount(connection, table).count + ";columns=");
+		for (SchemaMetadata.Column column : columns)
+			fingerprint.append(column.name).append(' ').append(column.type).append(',');
+		return fingerprint.toString();
+	}
 
-		int i = 0;
-		indexedTableNameLookup = new HashMap<>();
-		for (Table table : tableToFieldInfos.keySet()) {
-			String tableNameIndexed = Table.indexTableNameForSheet(table.getName(), i);
-			indexedTableNameLookup.put(table.getName(), tableNameIndexed);
-			i++;
+	private void processDatabase(DbSettings dbSettings) {
+		// GBQ requires database. Put database value into domain var
+		if (dbSettings.dbType == DbType.BIGQUERY) {
+			dbSettings.domain = dbSettings.database;
 		}
 
-		createFieldOverviewSheet();
-		createTableOverviewSheet();
+		rowCountProvider = new RowCountProvider(dbType, database, rowCountMode);
+		int connectionCount = Math.max(1, Math.min(threadCount, dbSettings.tables.size()));
+		BlockingQueue<RichConnection> connections = new ArrayBlockingQueue<>(connectionCount);
+		try {
+			for (int i = 0; i < connectionCount; i++) {
+				RichConnection connection = new RichConnection(dbSettings.server, dbSettings.domain, dbSettings.user, dbSettings.password, dbSettings.dbType);
+				connection.setVerbose(false);
+				connection.setFetchSize(fetchSize);
+				connection.use(dbSettings.database);
+				connections.add(connection);
+			}
+			if (schemaMetadata == null || !Objects.equals(schemaMetadata.getDatabase(), database))
+				schemaMetadata = connections.peek().getSchemaMetadata(database);
+
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (String table : dbSettings.tables) {
+				tasks.add(() -> {
+					// Borrow a connection for the duration of the table scan, so no connection is used by two threads
+					RichConnection connection = connections.take();
+					String fingerprint;
+					Pair<List<FieldInfo>, String> scan = null;
+					try {
+						fingerprint = fingerprintDatabaseTable(table, connection);
+						if (reuseSavedTable(table, fingerprint))
+							return null;
+						if (mergeAppendedRows && watermarkColumn != null)
+							scan = processAppendedDatabaseRows(table, connection);
+						if (scan == null)
+							scan = new Pair<>(processDatabaseTable(table, connection), null);
+					} finally {
+						connections.put(connection);
+					}
+					completeTable(table, fingerprint, new Table(table), scan.getItem1(), scan.getItem2());
+					return null;
+				});
+			}
 
-		if (scanValues) {
-			createValueSheet();
+			scanInParallel(tasks);
+		} finally {
+			for (RichConnection connection : connections) {
+				connection.close();
+			}
 		}
+	}
 
-		createMetaSheet();
+	private void processCsvFiles(DbSettings dbSettings) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (String fileName : dbSettings.tables) {
+			tasks.add(() -> {
+				long size = new File(fileName).length();
+				String fingerprint = FileFingerprints.fingerprint(fileName);
+				if (reuseSavedTable(fileName, fingerprint))
+					return null;
+				Pair<List<FieldInfo>, String> scan = null;
+				if (mergeAppendedRows && delimiter <= 127)
+					scan = processAppendedCsvRows(fileName, size);
+				if (scan == null)
+					scan = new Pair<>(processCsvFile(fileName), null);
+				Table table = new Table();
+				table.setName(new File(fileName).getName());
+				completeTable(fileName, fingerprint, table, scan.getItem1(), scan.getItem2());
+				return null;
+			});
+		}
 
-		try (FileOutputStream out = new FileOutputStream(new File(filename))) {
-			workbook.write(out);
-			out.close();
-			StringUtilities.outputWithTime("Scan report generated: " + filename);
-		} catch (IOException ex) {
-			throw new RuntimeException(ex.getMessage());
+		scanInParallel(tasks);
+	}
+
+	private void processSasFiles(DbSettings dbSettings) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (String fileName : dbSettings.tables) {
+			tasks.add(() -> {
+				try(FileInputStream inputStream = new FileInputStream(new File(fileName))) {
+					String fingerprint = FileFingerprints.fingerprint(fileName);
+					if (reuseSavedTable(fileName, fingerprint))
+						return null;
+
+					SasFileReader sasFileReader = new SasFileReaderImpl(inputStream);
+					SasFileProperties sasFileProperties = sasFileReader.getSasFileProperties();
+
+					Table table = new Table(new File(fileName).getName());
+					table.setName(new File(fileName).getName());
+					table.setComment(sasFileProperties.getName());
+
+					StringUtilities.outputWithTime("Scanning table " + fileName);
+					List<FieldInfo> fieldInfos = processSasFile(sasFileReader);
+					completeTable(fileName, fingerprint, table, fieldInfos);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return null;
+			});
 		}
+
+		scanInParallel(tasks);
 	}
 
-	private void createFieldOverviewSheet() {
-		Sheet overviewSheet = workbook.createSheet(ScanSheetName.FIELD_OVERVIEW);
-		CellStyle percentageStyle = workbook.createCellStyle();
-		percentageStyle.setDataFormat(workbook.createDataFormat().getFormat("0.0%"));
+	/**
+	 * Runs the given scan tasks on a pool of {@link #threadCount} workers.
+	 * @return the results of the tasks, in the same order as the tasks
+	 */
+	private <T> List<T> scanInParallel(List<Callable<T>> tasks) {
+		return scanInParallel(tasks, threadCount);
+	}
 
-		// Create heading
-		List<String> overviewHeader = new ArrayList<>(Arrays.asList(
+	private <T> List<T> scanInParallel(List<Callable<T>> tasks, int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+		try {
+			List<Future<T>> futures = new ArrayList<>();
+			for (Callable<T> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+
+			List<T> results = new ArrayList<>(futures.size());
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates the scan result file, with the headers of the overviews. Tables are added to it as soon as they have been
+	 * scanned, see {@link #reportTable(Table, List)}.
+	 */
+	private void startReport(String outputFileName) {
+		reportedTableCount = 0;
+
+		fieldOverviewHeader = new ArrayList<>(Arrays.asList(
 				ScanFieldName.TABLE,
 				ScanFieldName.FIELD,
 				ScanFieldName.DESCRIPTION,
@@ -211,333 +790,830 @@ public class SourceDataScan {
 				ScanFieldName.N_ROWS
 		));
 		if (scanValues) {
-			overviewHeader.addAll(Arrays.asList(
+			fieldOverviewHeader.addAll(Arrays.asList(
 					ScanFieldName.N_ROWS_CHECKED,
 					ScanFieldName.FRACTION_EMPTY,
 					ScanFieldName.UNIQUE_COUNT,
 					ScanFieldName.FRACTION_UNIQUE
 			));
+			if (valueCountingStrategy == ValueCountingStrategy.HEAVY_HITTERS) {
+				fieldOverviewHeader.add(ScanFieldName.FREQUENCY_ERROR);
+			}
 			if (calculateNumericStats) {
-				overviewHeader.addAll(Arrays.asList(
+				fieldOverviewHeader.addAll(Arrays.asList(
 						ScanFieldName.AVERAGE,
 						ScanFieldName.STDEV,
-						ScanFieldName.MIN,
+						ScanFieldName.MIN
+				));
+				if (extraPercentiles) {
+					fieldOverviewHeader.addAll(Arrays.asList(ScanFieldName.P1, ScanFieldName.P5));
+				}
+				fieldOverviewHeader.addAll(Arrays.asList(
 						ScanFieldName.Q1,
 						ScanFieldName.Q2,
-						ScanFieldName.Q3,
-						ScanFieldName.MAX
+						ScanFieldName.Q3
 				));
+				if (extraPercentiles) {
+					fieldOverviewHeader.addAll(Arrays.asList(ScanFieldName.P95, ScanFieldName.P99));
+				}
+				fieldOverviewHeader.add(ScanFieldName.MAX);
+			}
+			fieldOverviewHeader.add(ScanFieldName.DATE_FORMAT);
+		}
+		fieldOverviewHeader.add(ScanFieldName.N_ROWS_TYPE);
+
+		tableOverviewHeader = Arrays.asList(
+				ScanFieldName.TABLE,
+				ScanFieldName.DESCRIPTION,
+				ScanFieldName.N_ROWS,
+				ScanFieldName.N_ROWS_CHECKED,
+				ScanFieldName.N_FIELDS,
+				ScanFieldName.N_FIELDS_EMPTY,
+				ScanFieldName.N_ROWS_TYPE
+		);
+		resultWriter = new ScanResultWriter(getResultFileName(outputFileName), fieldOverviewHeader, tableOverviewHeader);
+	}
+
+	private static String getResultFileName(String outputFileName) {
+		return outputFileName.replaceAll("\\.xlsx$", "") + ScanResultWriter.EXTENSION;
+	}
+
+	/**
+	 * Adds a scanned table to the scan result file: its rows in the overviews, and its value counts. The table is
+	 * written right away, so after this the field infos of the table, and their value counts, are no longer needed.
+	 * Tables are added in the order in which their scans finish.
+	 */
+	private synchronized void reportTable(Table table, List<FieldInfo> fieldInfos) {
+		if (fieldInfos.isEmpty())
+			return;
+		String tableNameIndexed = Table.indexTableNameForSheet(table.getName(), reportedTableCount++);
+		List<String> valueCountLabels = null;
+		List<List<Pair<String, Integer>>> valueCounts = null;
+		if (scanValues) {
+			valueCountLabels = new ArrayList<>();
+			valueCounts = new ArrayList<>();
+			for (FieldInfo fieldInfo : fieldInfos) {
+				valueCountLabels.add(fieldInfo.isFreeText ? "Word count" : "Frequency");
+				valueCounts.add(fieldInfo.getSortedValuesWithoutSmallValues());
 			}
 		}
-		addRow(overviewSheet, overviewHeader.toArray());
+		resultWriter.addTable(
+				createTableOverviewRow(tableNameIndexed, table.getComment(), fieldInfos),
+				createFieldOverviewRows(tableNameIndexed, fieldInfos),
+				valueCountLabels,
+				valueCounts
+		);
+	}
 
-		// Add fields
-		for (Table table : tableToFieldInfos.keySet()) {
-			String tableName = table.getName();
-			String tableNameIndexed = indexedTableNameLookup.get(tableName);
+	private void finishReport(String filename) {
+		addMetadata();
+		resultWriter.close();
+		String resultFileName = getResultFileName(filename);
+		StringUtilities.outputWithTime("Scan result written: " + resultFileName);
+		if (xlsxReport) {
+			exportReport(resultFileName, filename);
+		}
+	}
 
-			for (FieldInfo fieldInfo : tableToFieldInfos.get(table)) {
-				List<Object> values = new ArrayList<>(Arrays.asList(
-						tableNameIndexed,
-						fieldInfo.name,
-						fieldInfo.label,
-						fieldInfo.getTypeDescription(),
-						fieldInfo.maxLength,
-						fieldInfo.rowCount
-				));
+	private List<List<Object>> createFieldOverviewRows(String tableNameIndexed, List<FieldInfo> fieldInfos) {
+		List<List<Object>> rows = new ArrayList<>();
+		for (FieldInfo fieldInfo : fieldInfos) {
+			List<Object> values = new ArrayList<>(Arrays.asList(
+					tableNameIndexed,
+					fieldInfo.name,
+					fieldInfo.label,
+					fieldInfo.getTypeDescription(),
+					fieldInfo.maxLength,
+					fieldInfo.rowCount
+			));
 
-				if (scanValues) {
-					Long uniqueCount = fieldInfo.uniqueCount;
-					Double fractionUnique = fieldInfo.getFractionUnique();
+			if (scanValues) {
+				values.addAll(Arrays.asList(
+						fieldInfo.nProcessed,
+						fieldInfo.getFractionEmpty(),
+						fieldInfo.hasValuesTrimmed() ? fieldInfo.getUniqueCountEstimate() : (Object) fieldInfo.uniqueCount,
+						fieldInfo.hasValuesTrimmed() ? fieldInfo.getFractionUniqueEstimate() : (Object) fieldInfo.getFractionUnique()
+				));
+				if (valueCountingStrategy == ValueCountingStrategy.HEAVY_HITTERS) {
+					values.add(fieldInfo.getMaxFrequencyError());
+				}
+				if (calculateNumericStats) {
 					values.addAll(Arrays.asList(
-							fieldInfo.nProcessed,
-							fieldInfo.getFractionEmpty(),
-							fieldInfo.hasValuesTrimmed() ? String.format("<= %d", uniqueCount) : uniqueCount,
-							fieldInfo.hasValuesTrimmed() ? String.format("<= %.3f", fractionUnique) : fractionUnique
+							fieldInfo.average,
+							fieldInfo.stdev,
+							fieldInfo.minimum
 					));
-					if (calculateNumericStats) {
-						values.addAll(Arrays.asList(
-								fieldInfo.average,
-								fieldInfo.stdev,
-								fieldInfo.minimum,
-								fieldInfo.q1,
-								fieldInfo.q2,
-								fieldInfo.q3,
-								fieldInfo.maximum
-						));
+					if (extraPercentiles) {
+						values.addAll(Arrays.asList(fieldInfo.p1, fieldInfo.p5));
 					}
+					values.addAll(Arrays.asList(
+							fieldInfo.q1,
+							fieldInfo.q2,
+							fieldInfo.q3
+					));
+					if (extraPercentiles) {
+						values.addAll(Arrays.asList(fieldInfo.p95, fieldInfo.p99));
+					}
+					values.add(fieldInfo.maximum);
 				}
-				Row row = addRow(overviewSheet, values.toArray());
-				if (scanValues) {
-					setColumnStyles(row, percentageStyle, 7, 9);
-				}
+				values.add(fieldInfo.getDateFormat());
 			}
-			addRow(overviewSheet, "");
+			values.add(fieldInfo.rowCountType);
+			rows.add(values);
 		}
+		return rows;
 	}
 
-	private void createTableOverviewSheet() {
-		Sheet tableOverviewSheet = workbook.createSheet(ScanSheetName.TABLE_OVERVIEW);
-
-		addRow(tableOverviewSheet,
-				ScanFieldName.TABLE,
-				ScanFieldName.DESCRIPTION,
-				ScanFieldName.N_ROWS,
-				ScanFieldName.N_ROWS_CHECKED,
-				ScanFieldName.N_FIELDS,
-				ScanFieldName.N_FIELDS_EMPTY
+	private List<Object> createTableOverviewRow(String tableNameIndexed, String description, List<FieldInfo> fieldInfos) {
+		long rowCount = -1;
+		String rowCountType = "";
+		long rowCheckedCount = -1;
+		long nFields = 0;
+		long nFieldsEmpty = 0;
+		for (FieldInfo fieldInfo : fieldInfos) {
+			rowCount = max(rowCount, fieldInfo.rowCount);
+			rowCountType = fieldInfo.rowCountType;
+			rowCheckedCount = max(rowCheckedCount, fieldInfo.nProcessed);
+			nFields += 1;
+			if (scanValues) {
+				nFieldsEmpty += fieldInfo.getFractionEmpty() == 1 ? 1 : 0;
+			}
+		}
+		return Arrays.asList(
+				tableNameIndexed,
+				description,
+				rowCount,
+				rowCheckedCount,
+				nFields,
+				scanValues ? nFieldsEmpty : -1,
+				rowCountType
 		);
+	}
 
-		for (Table table : tableToFieldInfos.keySet()) {
-			String tableName = table.getName();
-			String tableNameIndexed = indexedTableNameLookup.get(tableName);
-			String description = table.getComment();
-			long rowCount = -1;
-			long rowCheckedCount = -1;
-			long nFields = 0;
-			long nFieldsEmpty = 0;
-			for (FieldInfo fieldInfo : tableToFieldInfos.get(table)) {
-				rowCount = max(rowCount, fieldInfo.rowCount);
-				rowCheckedCount = max(rowCheckedCount, fieldInfo.nProcessed);
-				nFields += 1;
-				if (scanValues) {
-					nFieldsEmpty += fieldInfo.getFractionEmpty() == 1 ? 1 : 0;
-				}
-			}
-			addRow(tableOverviewSheet,
-					tableNameIndexed,
-					description,
-					rowCount,
-					rowCheckedCount,
-					nFields,
-					scanValues ? nFieldsEmpty : -1
-			);
-		}
-	}
-
-	private void createValueSheet() {
-		// Make a copy of the tableNames, such that we can dereference the table at the end of each loop to save memory
-		Table[] tables = tableToFieldInfos.keySet().toArray(new Table[0]);
-
-		for (Table table : tables) {
-			String tableName = table.getName();
-			String tableNameIndexed = indexedTableNameLookup.get(tableName);
-			Sheet valueSheet = workbook.createSheet(Table.createSheetNameFromTableName(tableNameIndexed));
-
-			List<FieldInfo> fieldInfos = tableToFieldInfos.get(table);
-			List<List<Pair<String, Integer>>> valueCounts = new ArrayList<>();
-			Object[] header = new Object[fieldInfos.size() * 2];
-			int maxCount = 0;
-			for (int i = 0; i < fieldInfos.size(); i++) {
-				FieldInfo fieldInfo = fieldInfos.get(i);
-				header[i * 2] = fieldInfo.name;
-				if (fieldInfo.isFreeText)
-					header[(i * 2) + 1] = "Word count";
-				else
-					header[(i * 2) + 1] = "Frequency";
-				List<Pair<String, Integer>> counts = fieldInfo.getSortedValuesWithoutSmallValues();
-				valueCounts.add(counts);
-				if (counts.size() > maxCount)
-					maxCount = counts.size();
-			}
-			addRow(valueSheet, header);
-			for (int i = 0; i < maxCount; i++) {
-				Object[] row = new Object[fieldInfos.size() * 2];
-				for (int j = 0; j < fieldInfos.size(); j++) {
-					List<Pair<String, Integer>> counts = valueCounts.get(j);
-					if (counts.size() > i) {
-						row[j * 2] = counts.get(i).getItem1();
-						row[(j * 2) + 1] = counts.get(i).getItem2() == -1 ? "" : counts.get(i).getItem2();
-					} else {
-						row[j * 2] = "";
-						row[(j * 2) + 1] = "";
+	private void addMetadata() {
+		// All variables to be stored
+		resultWriter.addMetadata("Version", Version.getVersion(this.getClass()));
+		resultWriter.addMetadata("Scan started at ", startTimeStamp.toString());
+		resultWriter.addMetadata("Scan finished at", LocalDateTime.now().toString());
+		resultWriter.addMetadata("MAX_VALUES_IN_MEMORY", SourceDataScan.MAX_VALUES_IN_MEMORY);
+		resultWriter.addMetadata("MIN_CELL_COUNT_FOR_CSV", SourceDataScan.MIN_CELL_COUNT_FOR_CSV);
+		resultWriter.addMetadata("N_FOR_FREE_TEXT_CHECK", SourceDataScan.N_FOR_FREE_TEXT_CHECK);
+		resultWriter.addMetadata("MIN_AVERAGE_LENGTH_FOR_FREE_TEXT", SourceDataScan.MIN_AVERAGE_LENGTH_FOR_FREE_TEXT);
+		resultWriter.addMetadata("HEAVY_HITTERS_CAPACITY", SourceDataScan.HEAVY_HITTERS_CAPACITY);
+		resultWriter.addMetadata("sourceType", this.sourceType.toString());
+		resultWriter.addMetadata("dbType", this.dbType != null ? this.dbType.getTypeName() : "");
+//		resultWriter.addMetadata("database", this.database);
+		resultWriter.addMetadata("delimiter", this.delimiter);
+		resultWriter.addMetadata("sampleSize", this.sampleSize);
+		resultWriter.addMetadata("scanValues", this.scanValues);
+		resultWriter.addMetadata("minCellCount", this.minCellCount);
+		resultWriter.addMetadata("maxValues", this.maxValues);
+		resultWriter.addMetadata("calculateNumericStats", this.calculateNumericStats);
+		resultWriter.addMetadata("numStatsSamplerSize", this.numStatsSamplerSize);
+		resultWriter.addMetadata("quantileMethod", this.quantileMethod.name());
+		resultWriter.addMetadata("QUANTILE_SKETCH_K", QUANTILE_SKETCH_K);
+		resultWriter.addMetadata("extraPercentiles", this.extraPercentiles);
+		resultWriter.addMetadata("quantileRankError", getQuantileRankError());
+		resultWriter.addMetadata("threadCount", this.threadCount);
+		resultWriter.addMetadata("columnThreadCount", this.columnThreadCount);
+		resultWriter.addMetadata("csvChunkCount", this.csvChunkCount);
+		resultWriter.addMetadata("fileSamplingMethod", this.fileSamplingMethod.name());
+		resultWriter.addMetadata("SAMPLE_BLOCK_ROWS", SAMPLE_BLOCK_ROWS);
+		resultWriter.addMetadata("SAMPLE_OVERSAMPLING", SAMPLE_OVERSAMPLING);
+		resultWriter.addMetadata("BLOCK_SAMPLING_MAX_FRACTION", SampleQueryBuilder.BLOCK_SAMPLING_MAX_FRACTION);
+		resultWriter.addMetadata("samplingKey", this.keySampler != null ? this.keySampler.getKeyColumn() : "");
+		resultWriter.addMetadata("samplingKeyFraction", this.keySampler != null ? this.keySampler.getFraction() : "");
+		resultWriter.addMetadata("rowCountMode", this.rowCountMode.name());
+		resultWriter.addMetadata("valueCountingStrategy", this.valueCountingStrategy.name());
+		resultWriter.addMetadata("fetchSize", this.fetchSize);
+		resultWriter.addMetadata("pushDownProfiling", this.pushDownProfiling);
+		resultWriter.addMetadata("dateFormats", String.join(";", this.dateFormats));
+		resultWriter.addMetadata("resume", this.resume);
+		resultWriter.addMetadata("incremental", this.incremental);
+		resultWriter.addMetadata("appendOnly", this.appendOnly);
+		resultWriter.addMetadata("watermarkColumn", this.watermarkColumn != null ? this.watermarkColumn : "");
+		resultWriter.addMetadata("reusedTables", this.reusedTables.size());
+		for (String reusedTable : this.reusedTables)
+			resultWriter.addMetadata("reusedTable", reusedTable);
+		resultWriter.addMetadata("appendOnlyFallbacks", this.appendOnlyFallbacks.size());
+		for (String fallback : this.appendOnlyFallbacks)
+			resultWriter.addMetadata("appendOnlyFallback", fallback);
+		resultWriter.addMetadata("xlsxReport", this.xlsxReport);
+	}
+
+	/**
+	 * Exports the scan result file as the Excel scan report, one table at a time.
+	 */
+	private void exportReport(String resultFileName, String filename) {
+		StringUtilities.outputWithTime("Generating scan report");
+		SXSSFWorkbook workbook = new SXSSFWorkbook(100); // keep 100 rows in memory, exceeding rows will be flushed to disk
+		CellStyle percentageStyle = workbook.createCellStyle();
+		percentageStyle.setDataFormat(workbook.createDataFormat().getFormat("0.0%"));
+
+		try (ScanResultReader reader = new ScanResultReader(resultFileName)) {
+			Sheet fieldOverviewSheet = workbook.createSheet(ScanSheetName.FIELD_OVERVIEW);
+			addRow(fieldOverviewSheet, reader.getFieldOverviewHeader().toArray());
+			int fractionEmptyColumn = reader.getFieldOverviewHeader().indexOf(ScanFieldName.FRACTION_EMPTY);
+			int fractionUniqueColumn = reader.getFieldOverviewHeader().indexOf(ScanFieldName.FRACTION_UNIQUE);
+			for (int table = 0; table < reader.getTableCount(); table++) {
+				for (List<Object> values : reader.getFieldOverviewRows(table)) {
+					Row row = addRow(fieldOverviewSheet, values.toArray());
+					if (fractionEmptyColumn != -1) {
+						setColumnStyles(row, percentageStyle, fractionEmptyColumn, fractionUniqueColumn);
 					}
 				}
-				addRow(valueSheet, row);
+				addRow(fieldOverviewSheet, "");
+			}
+
+			Sheet tableOverviewSheet = workbook.createSheet(ScanSheetName.TABLE_OVERVIEW);
+			addRow(tableOverviewSheet, reader.getTableOverviewHeader().toArray());
+			for (int table = 0; table < reader.getTableCount(); table++) {
+				addRow(tableOverviewSheet, reader.getTableOverviewRow(table).toArray());
+			}
+
+			for (int table = 0; table < reader.getTableCount(); table++) {
+				if (reader.hasValueCounts(table)) {
+					createValueSheet(workbook, reader, table);
+				}
+			}
+
+			Sheet metaSheet = workbook.createSheet("_");
+			addRow(metaSheet, "Key", "Value");
+			for (Pair<String, Object> item : reader.getMetadata()) {
+				addRow(metaSheet, item.getItem1(), item.getItem2());
+			}
+		}
+
+		try (FileOutputStream out = new FileOutputStream(new File(filename))) {
+			workbook.write(out);
+			out.close();
+			StringUtilities.outputWithTime("Scan report generated: " + filename);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex.getMessage());
+		}
+	}
+
+	private void createValueSheet(SXSSFWorkbook workbook, ScanResultReader reader, int table) {
+		String tableNameIndexed = ScanResultReader.getString(
+				reader.getTableOverviewRow(table).get(reader.getTableOverviewHeader().indexOf(ScanFieldName.TABLE)));
+		SXSSFSheet valueSheet = workbook.createSheet(Table.createSheetNameFromTableName(tableNameIndexed));
+
+		List<Object> fieldNames = reader.getFieldOverviewColumn(table, ScanFieldName.FIELD);
+		List<List<Pair<String, Integer>>> valueCounts = new ArrayList<>();
+		Object[] header = new Object[fieldNames.size() * 2];
+		int maxCount = 0;
+		for (int i = 0; i < fieldNames.size(); i++) {
+			header[i * 2] = fieldNames.get(i);
+			header[(i * 2) + 1] = reader.getValueCountLabel(table, i);
+			List<Pair<String, Integer>> counts = reader.getValueCounts(table, i);
+			valueCounts.add(counts);
+			if (counts.size() > maxCount)
+				maxCount = counts.size();
+		}
+		addRow(valueSheet, header);
+		for (int i = 0; i < maxCount; i++) {
+			Object[] row = new Object[fieldNames.size() * 2];
+			for (int j = 0; j < fieldNames.size(); j++) {
+				List<Pair<String, Integer>> counts = valueCounts.get(j);
+				if (counts.size() > i) {
+					row[j * 2] = counts.get(i).getItem1();
+					row[(j * 2) + 1] = counts.get(i).getItem2() == -1 ? "" : counts.get(i).getItem2();
+				} else {
+					row[j * 2] = "";
+					row[(j * 2) + 1] = "";
+				}
 			}
-			// Save some memory by dereferencing tables already included in the report:
-			tableToFieldInfos.remove(table);
+			addRow(valueSheet, row);
+		}
+		try {
+			// The sheet is complete, so none of its rows have to stay in memory
+			valueSheet.flushRows();
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
 		}
 	}
 
-	private void createMetaSheet() {
-		// All variables to be stored
-		Sheet metaSheet = workbook.createSheet("_");
-		addRow(metaSheet, "Key", "Value");
-		addRow(metaSheet, "Version", Version.getVersion(this.getClass()));
-		addRow(metaSheet, "Scan started at ", startTimeStamp.toString());
-		addRow(metaSheet, "Scan finished at", LocalDateTime.now().toString());
-		addRow(metaSheet, "MAX_VALUES_IN_MEMORY", SourceDataScan.MAX_VALUES_IN_MEMORY);
-		addRow(metaSheet, "MIN_CELL_COUNT_FOR_CSV", SourceDataScan.MIN_CELL_COUNT_FOR_CSV);
-		addRow(metaSheet, "N_FOR_FREE_TEXT_CHECK", SourceDataScan.N_FOR_FREE_TEXT_CHECK);
-		addRow(metaSheet, "MIN_AVERAGE_LENGTH_FOR_FREE_TEXT", SourceDataScan.MIN_AVERAGE_LENGTH_FOR_FREE_TEXT);
-		addRow(metaSheet, "sourceType", this.sourceType.toString());
-		addRow(metaSheet, "dbType", this.dbType != null ? this.dbType.getTypeName() : "");
-//		addRow(metaSheet, "database", this.database);
-		addRow(metaSheet, "delimiter", this.delimiter);
-		addRow(metaSheet, "sampleSize", this.sampleSize);
-		addRow(metaSheet, "scanValues", this.scanValues);
-		addRow(metaSheet, "minCellCount", this.minCellCount);
-		addRow(metaSheet, "maxValues", this.maxValues);
-		addRow(metaSheet, "calculateNumericStats", this.calculateNumericStats);
-		addRow(metaSheet, "numStatsSamplerSize", this.numStatsSamplerSize);
-
-	}
-
-	private void removeEmptyTables() {
-		tableToFieldInfos.entrySet()
-				.removeIf(stringListEntry -> stringListEntry.getValue().size() == 0);
+	/**
+	 * Describes how far the rank of a reported quantile may be off, as a fraction of the number of values.
+	 */
+	private String getQuantileRankError() {
+		if (quantileMethod == QuantileMethod.SKETCH)
+			return String.format("%.2f%% (99%% confidence), exact up to %d values", 100 * KllQuantileSketch.getNormalizedRankError(QUANTILE_SKETCH_K), QUANTILE_SKETCH_K);
+
+		// The standard error of a sample quantile is sqrt(p(1 - p) / n) in rank, which is largest for the median
+		double standardError = 0.5 / Math.sqrt(Math.max(1, numStatsSamplerSize));
+		return String.format("%.2f%% (standard error of the median), exact up to %d values", 100 * standardError, numStatsSamplerSize);
 	}
 
 	private List<FieldInfo> processDatabaseTable(String table, RichConnection connection) {
 		StringUtilities.outputWithTime("Scanning table " + table);
 
-		long rowCount = connection.getTableSize(table);
-		List<FieldInfo> fieldInfos = fetchTableStructure(connection, table);
-		if (scanValues) {
-			int actualCount = 0;
-			QueryResult queryResult = null;
+		List<FieldInfo> fieldInfos = fetchTableStructure(table);
+		if (fieldInfos.isEmpty())
+			return fieldInfos;
+		RowCountProvider.RowCount rowCount = rowCountProvider.getRowCount(connection, table);
+		for (FieldInfo fieldInfo : fieldInfos) {
+			fieldInfo.rowCount = rowCount.count;
+			fieldInfo.rowCountType = rowCount.getType();
+		}
+		if (scanValues && pushDownProfiling && dbType != DbType.MSACCESS) {
 			try {
-				queryResult = fetchRowsFromTable(connection, table, rowCount);
-				for (org.ohdsi.utilities.files.Row row : queryResult) {
-					for (FieldInfo fieldInfo : fieldInfos) {
-						fieldInfo.processValue(row.get(fieldInfo.name));
-					}
-					actualCount++;
-					if (sampleSize != -1 && actualCount >= sampleSize) {
-						System.out.println("Stopped after " + actualCount + " rows");
-						break;
+				profileTableInDatabase(connection, table, fieldInfos);
+			} catch (Exception e) {
+				System.out.println("Error: " + e.getMessage());
+			}
+		} else if (scanValues) {
+			int keyIndex = findKeyColumn(fieldInfos);
+			ColumnPipeline pipeline = createPipeline(fieldInfos);
+			try {
+				try {
+					if (keyIndex != -1) {
+						fetchRowsByKey(connection, table, fieldInfos, keyIndex, pipeline);
+					} else if (sampleSize == -1 || rowCount.count <= sampleSize) {
+						fetchRowsFromTable(connection, new SampleQueryBuilder(dbType).createQuery(table), fieldInfos, pipeline::add, sampleSize);
+					} else {
+						for (String[] row : sampleRowsFromTable(connection, table, fieldInfos, rowCount.count))
+							pipeline.add(row);
 					}
+				} finally {
+					pipeline.close();
 				}
+				reportThroughput(table, pipeline);
 				for (FieldInfo fieldInfo : fieldInfos)
 					fieldInfo.trim();
 			} catch (Exception e) {
 				System.out.println("Error: " + e.getMessage());
-			} finally {
-				if (queryResult != null) {
-					queryResult.close();
-				}
 			}
 		}
 
 		return fieldInfos;
 	}
 
-	private QueryResult fetchRowsFromTable(RichConnection connection, String table, long rowCount) {
-		String query = null;
+	/**
+	 * Finds the position of the value of each field in the rows returned by the database
+	 */
+	private int[] getColumnIndices(List<FieldInfo> fieldInfos, List<String> columnNames) {
+		int[] columnIndices = new int[fieldInfos.size()];
+		for (int i = 0; i < columnIndices.length; i++) {
+			columnIndices[i] = columnNames.indexOf(fieldInfos.get(i).name);
+			if (columnIndices[i] == -1)
+				throw new RuntimeException("Field \"" + fieldInfos.get(i).name + "\" not found");
+		}
+		return columnIndices;
+	}
 
-		if (sampleSize == -1) {
-			if (dbType == DbType.MSACCESS)
-				query = "SELECT * FROM [" + table + "]";
-			else if (dbType == DbType.MSSQL || dbType == DbType.PDW || dbType == DbType.AZURE)
-				query = "SELECT * FROM [" + table.replaceAll("\\.", "].[") + "]";
-			else
-				query = "SELECT * FROM " + table;
+	/**
+	 * Runs the query and passes the values of the fields in every row returned to the consumer.
+	 *
+	 * @param maxRows the number of rows after which to stop, or -1 to read all rows returned
+	 */
+	private void fetchRowsFromTable(RichConnection connection, String query, List<FieldInfo> fieldInfos, Consumer<String[]> rows, int maxRows) {
+		ArrayQueryResult queryResult = connection.streamArrays(query);
+		try {
+			Iterator<String[]> iterator = queryResult.iterator();
+			int[] columnIndices = getColumnIndices(fieldInfos, queryResult.getColumnNames());
+			int actualCount = 0;
+			while (iterator.hasNext()) {
+				String[] row = iterator.next();
+				String[] values = new String[columnIndices.length];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = row[columnIndices[i]];
+				}
+				rows.accept(values);
+				actualCount++;
+				if (maxRows != -1 && actualCount >= maxRows) {
+					System.out.println("Stopped after " + actualCount + " rows");
+					break;
+				}
+			}
+		} finally {
+			queryResult.close();
+		}
+	}
+
+	/**
+	 * Fetches the rows of the sampled keys. The key test is part of the query, unless the database has no hash
+	 * function.
+	 */
+	private void fetchRowsByKey(RichConnection connection, String table, List<FieldInfo> fieldInfos, int keyIndex, ColumnPipeline pipeline) {
+		String query = new SampleQueryBuilder(dbType).createQuery(table);
+		String predicate = keySampler.createPredicate(dbType, new ProfileQueryBuilder(dbType).getColumnReference(fieldInfos.get(keyIndex).name));
+		if (predicate != null) {
+			fetchRowsFromTable(connection, query + " WHERE " + predicate, fieldInfos, pipeline::add, -1);
 		} else {
-			if (dbType == DbType.MSSQL || dbType == DbType.AZURE)
-				query = "SELECT * FROM [" + table.replaceAll("\\.", "].[") + "] TABLESAMPLE (" + sampleSize + " ROWS)";
-			else if (dbType == DbType.MYSQL)
-				query = "SELECT * FROM " + table + " ORDER BY RAND() LIMIT " + sampleSize;
-			else if (dbType == DbType.PDW)
-				query = "SELECT TOP " + sampleSize + " * FROM [" + table.replaceAll("\\.", "].[") + "] ORDER BY RAND()";
-			else if (dbType == DbType.ORACLE) {
-				if (sampleSize < rowCount) {
-					double percentage = 100 * sampleSize / (double) rowCount;
-					if (percentage < 100)
-						query = "SELECT * FROM " + table + " SAMPLE(" + percentage + ")";
+			fetchRowsFromTable(connection, query, fieldInfos, row -> {
+				if (row[keyIndex] != null && keySampler.accepts(row[keyIndex]))
+					pipeline.add(row);
+			}, -1);
+		}
+	}
+
+	/**
+	 * Returns the index of the sampling key in the fields, or -1 if not sampling by key or the table has no key field.
+	 */
+	private int findKeyColumn(List<FieldInfo> fieldInfos) {
+		if (keySampler == null)
+			return -1;
+		return keySampler.findKeyColumn(fieldInfos.stream().map(fieldInfo -> fieldInfo.name).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Fetches a uniform random sample of sampleSize rows of a table that has more rows than that. The database samples
+	 * a fraction of the rows that is somewhat larger than needed (SAMPLE_OVERSAMPLING), and the surplus rows are
+	 * dropped at random. If the database returns too few rows, which can happen with block sampling, the table is
+	 * sampled again at row level with a fraction scaled up by the shortfall, at most MAX_SAMPLE_ATTEMPTS times.
+	 */
+	private List<String[]> sampleRowsFromTable(RichConnection connection, String table, List<FieldInfo> fieldInfos, long rowCount) {
+		SampleQueryBuilder queryBuilder = new SampleQueryBuilder(dbType);
+		double fraction = Math.min(1, SAMPLE_OVERSAMPLING * sampleSize / rowCount);
+		for (int attempt = 1;; attempt++) {
+			String query = queryBuilder.createSampleQuery(table, fraction, sampleSize, attempt > 1);
+			ReservoirSampler<String[]> sampler = new ReservoirSampler<>(sampleSize);
+			// The surplus rows are dropped by the sampler, so the query is read to the end
+			fetchRowsFromTable(connection, query, fieldInfos, sampler::add, -1);
+
+			long count = sampler.getCount();
+			if (count >= sampleSize || fraction >= 1 || attempt >= MAX_SAMPLE_ATTEMPTS || !queryBuilder.samplesFraction())
+				return sampler.getSample();
+			StringUtilities.outputWithTime("Sample of " + table + " has " + count + " rows instead of " + sampleSize + ", sampling again");
+			fraction = Math.min(1, fraction * SAMPLE_OVERSAMPLING * sampleSize / Math.max(1, count));
+		}
+	}
+
+	/**
+	 * Fills the field statistics with aggregate queries computed by the database, instead of fetching the rows. All rows
+	 * of the table are profiled. The value and data type checks use the data types declared in the database.
+	 */
+	private void profileTableInDatabase(RichConnection connection, String table, List<FieldInfo> fieldInfos) {
+		StringUtilities.outputWithTime("Profiling table " + table + " in the database");
+		ProfileQueryBuilder queryBuilder = new ProfileQueryBuilder(dbType);
+		String tableReference = queryBuilder.getTableReference(table);
+
+		// Counts, lengths and numeric statistics of all fields in one pass over the table
+		List<String> expressions = new ArrayList<>();
+		expressions.add("COUNT(*)");
+		for (FieldInfo fieldInfo : fieldInfos) {
+			fieldInfo.setValueTypeFromColumnType();
+			String column = queryBuilder.getColumnReference(fieldInfo.name);
+			expressions.add("COUNT(DISTINCT " + column + ")");
+			expressions.add("COUNT(*) - COUNT(" + column + ")");
+			expressions.add(queryBuilder.createCountEmptyExpression(column, fieldInfo.isText()));
+			expressions.add("MAX(" + queryBuilder.createLengthExpression(column, fieldInfo.isText()) + ")");
+			if (calculateNumericStats && (fieldInfo.isInteger || fieldInfo.isReal || fieldInfo.isDate)) {
+				expressions.add("MIN(" + column + ")");
+				expressions.add("MAX(" + column + ")");
+				if (!fieldInfo.isDate) {
+					expressions.add(queryBuilder.createAverageExpression(column));
+					expressions.add(queryBuilder.createStandardDeviationExpression(column));
+				}
+			}
+		}
+		String[] statistics = queryFirstRow(connection, "SELECT " + String.join(", ", expressions) + " FROM " + tableReference);
+
+		int index = 0;
+		long rowCount = parseLong(statistics[index++]);
+		long[] nullCounts = new long[fieldInfos.size()];
+		for (int i = 0; i < fieldInfos.size(); i++) {
+			FieldInfo fieldInfo = fieldInfos.get(i);
+			// The statistics cover all rows, so the row count is exact even when it was estimated
+			fieldInfo.rowCount = rowCount;
+			fieldInfo.rowCountType = "exact";
+			fieldInfo.nProcessed = rowCount;
+			fieldInfo.uniqueCount = parseLong(statistics[index++]);
+			long nullCount = parseLong(statistics[index++]);
+			nullCounts[i] = nullCount;
+			fieldInfo.emptyCount = parseLong(statistics[index++]);
+			fieldInfo.maxLength = (int) parseLong(statistics[index++]);
+			// Missing values are scanned as empty strings, which COUNT(DISTINCT) does not count. Empty strings stored as
+			// such are counted already
+			if (nullCount > 0)
+				fieldInfo.uniqueCount++;
+			fieldInfo.quantileEstimator = null;
+			if (calculateNumericStats && (fieldInfo.isInteger || fieldInfo.isReal || fieldInfo.isDate)) {
+				if (fieldInfo.isDate) {
+					fieldInfo.minimum = statistics[index++];
+					fieldInfo.maximum = statistics[index++];
+					fieldInfo.average = Double.NaN;
+					fieldInfo.stdev = Double.NaN;
 				} else {
-					query = "SELECT * FROM " + table;
+					fieldInfo.minimum = parseDouble(statistics[index++]);
+					fieldInfo.maximum = parseDouble(statistics[index++]);
+					fieldInfo.average = parseDouble(statistics[index++]);
+					fieldInfo.stdev = parseDouble(statistics[index++]);
+				}
+				fieldInfo.q1 = Double.NaN;
+				fieldInfo.q2 = Double.NaN;
+				fieldInfo.q3 = Double.NaN;
+				fieldInfo.p1 = Double.NaN;
+				fieldInfo.p5 = Double.NaN;
+				fieldInfo.p95 = Double.NaN;
+				fieldInfo.p99 = Double.NaN;
+			}
+		}
+
+		for (int i = 0; i < fieldInfos.size(); i++) {
+			FieldInfo fieldInfo = fieldInfos.get(i);
+			String column = queryBuilder.getColumnReference(fieldInfo.name);
+
+			// Most frequent values
+			ArrayQueryResult queryResult = connection.queryArrays(queryBuilder.createValueCountQuery(column, tableReference, maxValues));
+			try {
+				for (String[] row : queryResult)
+					fieldInfo.valueCounts.add(row[0], (int) Math.min(parseLong(row[1]), Integer.MAX_VALUE));
+			} finally {
+				queryResult.close();
+			}
+
+			// Quantiles
+			if (calculateNumericStats && (fieldInfo.isInteger || fieldInfo.isReal)) {
+				double[] fractions = extraPercentiles ? new double[] { 0.25, 0.5, 0.75, 0.01, 0.05, 0.95, 0.99 } : new double[] { 0.25, 0.5, 0.75 };
+				String[] quantiles = queryFirstRow(connection, queryBuilder.createQuantileQuery(column, tableReference, fractions, rowCount - nullCounts[i]));
+				fieldInfo.q1 = parseDouble(quantiles[0]);
+				fieldInfo.q2 = parseDouble(quantiles[1]);
+				fieldInfo.q3 = parseDouble(quantiles[2]);
+				if (extraPercentiles) {
+					fieldInfo.p1 = parseDouble(quantiles[3]);
+					fieldInfo.p5 = parseDouble(quantiles[4]);
+					fieldInfo.p95 = parseDouble(quantiles[5]);
+					fieldInfo.p99 = parseDouble(quantiles[6]);
 				}
-			} else if (dbType == DbType.POSTGRESQL || dbType == DbType.REDSHIFT)
-				query = "SELECT * FROM " + table + " ORDER BY RANDOM() LIMIT " + sampleSize;
-			else if (dbType == DbType.MSACCESS)
-				query = "SELECT " + "TOP " + sampleSize + " * FROM [" + table + "]";
-			else if (dbType == DbType.BIGQUERY)
-				query = "SELECT * FROM " + table + " ORDER BY RAND() LIMIT " + sampleSize;
+			}
+		}
+	}
+
+	private String[] queryFirstRow(RichConnection connection, String query) {
+		ArrayQueryResult queryResult = connection.queryArrays(query);
+		try {
+			Iterator<String[]> iterator = queryResult.iterator();
+			if (!iterator.hasNext())
+				throw new RuntimeException("Query returned no rows: " + query);
+			return iterator.next();
+		} finally {
+			queryResult.close();
 		}
-		// System.out.println("SQL: " + query);
-		return connection.query(query);
+	}
+
+	private static long parseLong(String value) {
+		if (value.isEmpty())
+			return 0;
+		return new java.math.BigDecimal(value).longValue();
+	}
 
+	private static double parseDouble(String value) {
+		if (value.isEmpty())
+			return Double.NaN;
+		return Double.parseDouble(value);
 	}
 
-	private List<FieldInfo> fetchTableStructure(RichConnection connection, String table) {
+	private List<FieldInfo> fetchTableStructure(String table) {
 		List<FieldInfo> fieldInfos = new ArrayList<>();
+		List<SchemaMetadata.Column> columns = schemaMetadata.getColumns(table);
+		if (columns == null) {
+			System.out.println("Table " + table + " not found in database " + database);
+			return fieldInfos;
+		}
+		for (SchemaMetadata.Column column : columns) {
+			FieldInfo fieldInfo = new FieldInfo(column.name);
+			fieldInfo.type = column.type;
+			fieldInfos.add(fieldInfo);
+		}
+		return fieldInfos;
+	}
+
+	private List<FieldInfo> processCsvFile(String filename) {
+		if (delimiter > 127)
+			return processCsvFileByLine(filename);
+
+		StringUtilities.outputWithTime("Scanning table " + filename);
+		List<FieldInfo> fieldInfos = new ArrayList<>();
+		try (MappedCsvReader reader = new MappedCsvReader(filename, delimiter)) {
+			if (!reader.next())
+				return fieldInfos;
+			for (int i = 0; i < reader.getCellCount(); i++) {
+				fieldInfos.add(new FieldInfo(reader.getCell(i).toString()));
+			}
+			if (!scanValues) {
+				return fieldInfos;
+			}
+
+			int keyIndex = findKeyColumn(fieldInfos);
+			if ((sampleSize == -1 || keyIndex != -1) && csvChunkCount > 1) {
+				long[] chunkStarts = MappedCsvReader.findLineStarts(filename, reader.getPosition(), csvChunkCount, MIN_CSV_CHUNK_SIZE);
+				if (chunkStarts.length > 2) {
+					reader.close();
+					return processCsvFileInChunks(filename, fieldInfos, chunkStarts, keyIndex);
+				}
+			}
 
-		if (dbType == DbType.MSACCESS) {
-			ResultSet rs = connection.getMsAccessFieldNames(table);
+			if (keyIndex == -1 && sampleSize != -1 && fileSamplingMethod != FileSamplingMethod.FIRST_ROWS) {
+				long dataStart = reader.getPosition();
+				reader.close();
+				return processCsvFileSample(filename, fieldInfos, dataStart);
+			}
+
+			ColumnPipeline pipeline = createPipeline(fieldInfos);
 			try {
-				while (rs.next()) {
-					FieldInfo fieldInfo = new FieldInfo(rs.getString("COLUMN_NAME"));
-					fieldInfo.type = rs.getString("TYPE_NAME");
-					fieldInfo.rowCount = connection.getTableSize(table);
-					fieldInfos.add(fieldInfo);
+				IntFunction<CharSequence> cells = reader::getCell;
+				int lineNr = 1;
+				while ((sampleSize == -1 || keyIndex != -1 || lineNr <= sampleSize) && reader.next()) {
+					lineNr++;
+					if (reader.getCellCount() == fieldInfos.size() && acceptsKey(reader, keyIndex)) { // Else there appears to be a formatting error, so skip
+						pipeline.add(cells);
+					}
 				}
-			} catch (SQLException e) {
-				throw new RuntimeException(e.getMessage());
+			} finally {
+				pipeline.close();
 			}
-		} else {
-			String query = null;
-			if (dbType == DbType.ORACLE)
-				query = "SELECT COLUMN_NAME,DATA_TYPE FROM ALL_TAB_COLUMNS WHERE table_name = '" + table + "' AND owner = '" + database.toUpperCase() + "'";
-			else if (dbType == DbType.MSSQL || dbType == DbType.PDW) {
-				String trimmedDatabase = database;
-				if (database.startsWith("[") && database.endsWith("]"))
-					trimmedDatabase = database.substring(1, database.length() - 1);
-				String[] parts = table.split("\\.");
-				query = "SELECT COLUMN_NAME,DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_CATALOG='" + trimmedDatabase + "' AND TABLE_SCHEMA='" + parts[0] +
-						"' AND TABLE_NAME='" + parts[1]	+ "';";
-			} else if (dbType == DbType.AZURE) {
-				String[] parts = table.split("\\.");
-				query = "SELECT COLUMN_NAME,DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA='" + parts[0] +
-						"' AND TABLE_NAME='" + parts[1]	+ "';";
-			} else if (dbType == DbType.MYSQL)
-				query = "SELECT COLUMN_NAME,DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = '" + database + "' AND TABLE_NAME = '" + table
-						+ "';";
-			else if (dbType == DbType.POSTGRESQL || dbType == DbType.REDSHIFT)
-				query = "SELECT COLUMN_NAME,DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = '" + database.toLowerCase() + "' AND TABLE_NAME = '"
-						+ table.toLowerCase() + "' ORDER BY ordinal_position;";
-			else if (dbType == DbType.TERADATA) {
-				query = "SELECT ColumnName, ColumnType FROM dbc.columns WHERE DatabaseName= '" + database.toLowerCase() + "' AND TableName = '"
-						+ table.toLowerCase() + "';";
-			}
-			else if (dbType == DbType.BIGQUERY) {
-				query = "SELECT column_name AS COLUMN_NAME, data_type as DATA_TYPE FROM " + database + ".INFORMATION_SCHEMA.COLUMNS WHERE table_name = \"" + table + "\";";
-			}
-
-			for (org.ohdsi.utilities.files.Row row : connection.query(query)) {
-				row.upperCaseFieldNames();
-				FieldInfo fieldInfo;
-				if (dbType == DbType.TERADATA) {
-					fieldInfo = new FieldInfo(row.get("COLUMNNAME"));
-				} else {
-					fieldInfo = new FieldInfo(row.get("COLUMN_NAME"));
+			reportThroughput(filename, pipeline);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		for (FieldInfo fieldInfo : fieldInfos)
+			fieldInfo.trim();
+
+		return fieldInfos;
+	}
+
+	/**
+	 * Scans the chunks of a delimited text file in parallel, and trims the merged results.
+	 */
+	private List<FieldInfo> processCsvFileInChunks(String filename, List<FieldInfo> fieldInfos, long[] chunkStarts, int keyIndex) {
+		scanCsvChunks(filename, fieldInfos, chunkStarts, keyIndex);
+		for (FieldInfo fieldInfo : fieldInfos)
+			fieldInfo.trim();
+		return fieldInfos;
+	}
+
+	/**
+	 * Scans the chunks of a delimited text file in parallel, each into its own field infos, and merges the results into
+	 * the given field infos, which are not trimmed.
+	 *
+	 * @param chunkStarts the byte offsets of the starts of the chunks, followed by the end of the file
+	 * @param keyIndex the index of the sampling key, or -1 to scan all rows
+	 */
+	private void scanCsvChunks(String filename, List<FieldInfo> fieldInfos, long[] chunkStarts, int keyIndex) {
+		long startTime = System.currentTimeMillis();
+		List<Callable<List<FieldInfo>>> tasks = new ArrayList<>();
+		for (int chunk = 0; chunk < chunkStarts.length - 1; chunk++) {
+			long start = chunkStarts[chunk];
+			long end = chunkStarts[chunk + 1];
+			tasks.add(() -> {
+				List<FieldInfo> chunkFieldInfos = new ArrayList<>(fieldInfos.size());
+				for (FieldInfo fieldInfo : fieldInfos) {
+					chunkFieldInfos.add(new FieldInfo(fieldInfo.name));
 				}
-				if (dbType == DbType.TERADATA) {
-					fieldInfo.type = row.get("COLUMNTYPE");
-				} else {
-					fieldInfo.type = row.get("DATA_TYPE");
+				ColumnPipeline pipeline = createPipeline(chunkFieldInfos);
+				try (MappedCsvReader reader = new MappedCsvReader(filename, delimiter, start, end)) {
+					IntFunction<CharSequence> cells = reader::getCell;
+					while (reader.next()) {
+						if (reader.getCellCount() == chunkFieldInfos.size() && acceptsKey(reader, keyIndex)) { // Else there appears to be a formatting error, so skip
+							pipeline.add(cells);
+						}
+					}
+				} finally {
+					pipeline.close();
 				}
-				fieldInfo.rowCount = connection.getTableSize(table);
-				fieldInfos.add(fieldInfo);
+				return chunkFieldInfos;
+			});
+		}
+
+		List<List<FieldInfo>> chunks = scanInParallel(tasks, tasks.size());
+		long rowCount = 0;
+		for (List<FieldInfo> chunk : chunks)
+			rowCount += chunk.isEmpty() ? 0 : chunk.get(0).nProcessed;
+		for (int i = 0; i < fieldInfos.size(); i++) {
+			FieldInfo fieldInfo = fieldInfos.get(i);
+			for (List<FieldInfo> chunk : chunks) {
+				fieldInfo.merge(chunk.get(i));
+			}
+		}
+
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+		StringUtilities.outputWithTime("Processed " + rowCount + " rows of " + filename + " in " + (chunkStarts.length - 1) +
+				" chunks (" + String.format("%.0f rows/s", rowCount / seconds) + ")");
+	}
+
+	/**
+	 * Scans a random sample of the rows of a delimited text file, chosen according to the file sampling method.
+	 *
+	 * @param dataStart the byte offset of the first line after the header
+	 */
+	private List<FieldInfo> processCsvFileSample(String filename, List<FieldInfo> fieldInfos, long dataStart) throws IOException {
+		List<String[]> rows;
+		if (fileSamplingMethod == FileSamplingMethod.RANDOM_BLOCKS)
+			rows = sampleCsvBlocks(filename, dataStart, fieldInfos.size());
+		else
+			rows = sampleCsvRows(filename, dataStart, fieldInfos.size());
+
+		ColumnPipeline pipeline = createPipeline(fieldInfos);
+		try {
+			for (String[] row : rows) {
+				pipeline.add(row);
 			}
+		} finally {
+			pipeline.close();
 		}
+		reportThroughput(filename, pipeline);
+		for (FieldInfo fieldInfo : fieldInfos)
+			fieldInfo.trim();
+
 		return fieldInfos;
 	}
 
-	private List<FieldInfo> processCsvFile(String filename) {
+	/**
+	 * Draws a uniform random sample of the lines of a delimited text file, and returns the rows in it. Lines that are
+	 * not selected are skipped without splitting them into cells. Lines with a formatting error are sampled like any
+	 * other line, and dropped afterwards, so they do not make the lines after them more likely to be selected.
+	 */
+	private List<String[]> sampleCsvRows(String filename, long dataStart, int cellCount) throws IOException {
+		ReservoirSampler<String[]> sampler = new ReservoirSampler<>(sampleSize);
+		try (MappedCsvReader reader = new MappedCsvReader(filename, delimiter, dataStart, -1)) {
+			while (true) {
+				if (sampler.isNextSelected()) {
+					if (!reader.next())
+						break;
+					sampler.add(reader.getCellCount() == cellCount ? getCells(reader) : null);
+				} else {
+					if (!reader.skipLine())
+						break;
+					sampler.skip(1);
+				}
+			}
+		}
+		List<String[]> rows = sampler.getSample();
+		rows.removeIf(Objects::isNull);
+		return rows;
+	}
+
+	/**
+	 * Samples blocks of SAMPLE_BLOCK_ROWS consecutive lines of a delimited text file. The file is divided into blocks
+	 * starting at every SAMPLE_BLOCK_ROWS-th line, so every line is in exactly one block, and the blocks are drawn
+	 * uniformly from these. Every line therefore has the same chance of being sampled, however long the lines before it
+	 * are. Finding the block starts takes one pass over the file, which only looks for line ends, after which only the
+	 * lines in the sampled blocks are split into cells. Lines with a formatting error count as lines of their block,
+	 * but are not returned. If the file holds less than ten times the sample size, a uniform sample of the rows is drawn
+	 * instead.
+	 */
+	private List<String[]> sampleCsvBlocks(String filename, long dataStart, int cellCount) throws IOException {
+		int blockCount = (sampleSize + SAMPLE_BLOCK_ROWS - 1) / SAMPLE_BLOCK_ROWS;
+		ReservoirSampler<Long> sampler = new ReservoirSampler<>(blockCount);
+		long lineCount = 0;
+		try (MappedCsvReader reader = new MappedCsvReader(filename, delimiter, dataStart, -1)) {
+			while (true) {
+				long lineStart = reader.getPosition();
+				if (!reader.skipLine())
+					break;
+				if (lineCount % SAMPLE_BLOCK_ROWS == 0)
+					sampler.add(lineStart);
+				lineCount++;
+			}
+		}
+		if (lineCount < 10L * sampleSize)
+			return sampleCsvRows(filename, dataStart, cellCount);
+
+		List<Long> blockStarts = sampler.getSample();
+		Collections.sort(blockStarts);
+		List<String[]> rows = new ArrayList<>(sampleSize);
+		for (long blockStart : blockStarts) {
+			try (MappedCsvReader reader = new MappedCsvReader(filename, delimiter, blockStart, -1)) {
+				for (int line = 0; line < SAMPLE_BLOCK_ROWS && rows.size() < sampleSize && reader.next(); line++) {
+					if (reader.getCellCount() == cellCount) // Else there appears to be a formatting error, so skip
+						rows.add(getCells(reader));
+				}
+			}
+		}
+		return rows;
+	}
+
+	private boolean acceptsKey(MappedCsvReader reader, int keyIndex) {
+		return keyIndex == -1 || keySampler.accepts(reader.getCell(keyIndex));
+	}
+
+	private static String[] getCells(MappedCsvReader reader) {
+		String[] cells = new String[reader.getCellCount()];
+		for (int i = 0; i < cells.length; i++)
+			cells[i] = reader.getCell(i).toString();
+		return cells;
+	}
+
+	/**
+	 * Scans a delimited text file line by line. Used for delimiters that are not ASCII characters, which the memory
+	 * mapped reader does not support.
+	 */
+	private List<FieldInfo> processCsvFileByLine(String filename) {
 		StringUtilities.outputWithTime("Scanning table " + filename);
 		List<FieldInfo> fieldInfos = new ArrayList<>();
+		ColumnPipeline pipeline = null;
+		ReservoirSampler<String> sampler = null;
+		int keyIndex = -1;
 		int lineNr = 0;
 		for (String line : new ReadTextFile(filename)) {
 			lineNr++;
-			List<String> row = StringUtilities.safeSplit(line, delimiter);
-			for (int i = 0; i < row.size(); i++) {
-				String column = row.get(i);
-				if (column.startsWith("\"") && column.endsWith("\"") && column.length() > 1)
-					column = column.substring(1, column.length() - 1);
-				column = column.replace("\\\"", "\"");
-				row.set(i, column);
+			if (lineNr > 1 && sampler != null) {
+				sampler.add(line);
+				continue;
 			}
+			List<String> row = splitLine(line);
 
 			if (lineNr == 1) {
 				for (String cell : row) {
@@ -547,22 +1623,51 @@ public class SourceDataScan {
 				if (!scanValues) {
 					return fieldInfos;
 				}
+				pipeline = createPipeline(fieldInfos);
+				keyIndex = findKeyColumn(fieldInfos);
+				// Random blocks need seeking by byte offset, which is not supported here, so rows are sampled uniformly
+				// instead
+				if (keyIndex == -1 && sampleSize != -1 && fileSamplingMethod != FileSamplingMethod.FIRST_ROWS)
+					sampler = new ReservoirSampler<>(sampleSize);
 			} else {
-				if (row.size() == fieldInfos.size()) { // Else there appears to be a formatting error, so skip
-					for (int i = 0; i < row.size(); i++) {
-						fieldInfos.get(i).processValue(row.get(i));
-					}
+				// Else there appears to be a formatting error, so skip
+				if (row.size() == fieldInfos.size() && (keyIndex == -1 || keySampler.accepts(row.get(keyIndex)))) {
+					pipeline.add(row.toArray(new String[0]));
 				}
 			}
-			if (lineNr > sampleSize)
+			if (keyIndex == -1 && sampleSize != -1 && lineNr > sampleSize)
 				break;
 		}
+		if (sampler != null && pipeline != null) {
+			for (String line : sampler.getSample()) {
+				List<String> row = splitLine(line);
+				if (row.size() == fieldInfos.size()) {
+					pipeline.add(row.toArray(new String[0]));
+				}
+			}
+		}
+		if (pipeline != null) {
+			pipeline.close();
+			reportThroughput(filename, pipeline);
+		}
 		for (FieldInfo fieldInfo : fieldInfos)
 			fieldInfo.trim();
 
 		return fieldInfos;
 	}
 
+	private List<String> splitLine(String line) {
+		List<String> row = StringUtilities.safeSplit(line, delimiter);
+		for (int i = 0; i < row.size(); i++) {
+			String column = row.get(i);
+			if (column.startsWith("\"") && column.endsWith("\"") && column.length() > 1)
+				column = column.substring(1, column.length() - 1);
+			column = column.replace("\\\"", "\"");
+			row.set(i, column);
+		}
+		return row;
+	}
+
 	private List<FieldInfo> processSasFile(SasFileReader sasFileReader) throws IOException {
 		List<FieldInfo> fieldInfos = new ArrayList<>();
 
@@ -571,6 +1676,7 @@ public class SourceDataScan {
 			FieldInfo fieldInfo = new FieldInfo(column.getName());
 			fieldInfo.label = column.getLabel();
 			fieldInfo.rowCount = sasFileProperties.getRowCount();
+			fieldInfo.rowCountType = "exact";
 			if (!scanValues) {
 				// Either NUMBER or STRING; scanning values produces a more granular type and is preferred
 				fieldInfo.type = column.getType().getName().replace("java.lang.", "");
@@ -583,18 +1689,46 @@ public class SourceDataScan {
 			return fieldInfos;
 		}
 
-		for (int lineNr = 0; lineNr < sasFileProperties.getRowCount() && lineNr < sampleSize; lineNr++) {
-			Object[] row = sasFileReader.readNext();
+		long rowCount = sasFileProperties.getRowCount();
+		int keyIndex = findKeyColumn(fieldInfos);
+		long rowsToRead = sampleSize == -1 || keyIndex != -1 ? rowCount : Math.min(rowCount, sampleSize);
+		// Parso reads rows sequentially, so a random sample is taken by only profiling the rows at random indices
+		long[] sampledRows = null;
+		if (keyIndex == -1 && sampleSize != -1 && sampleSize < rowCount && fileSamplingMethod != FileSamplingMethod.FIRST_ROWS) {
+			sampledRows = drawSortedIndices(rowCount, sampleSize);
+			rowsToRead = sampledRows[sampledRows.length - 1] + 1;
+		}
 
-			if (row.length != fieldInfos.size()) {
-				StringUtilities.outputWithTime("WARNING: row " + lineNr + " not scanned due to field count mismatch.");
-				continue;
-			}
+		ColumnPipeline pipeline = createPipeline(fieldInfos);
+		try {
+			int sampledRowNr = 0;
+			for (long lineNr = 0; lineNr < rowsToRead; lineNr++) {
+				Object[] row = sasFileReader.readNext();
+				if (row == null)
+					break;
+				if (sampledRows != null) {
+					if (lineNr != sampledRows[sampledRowNr])
+						continue;
+					sampledRowNr++;
+				}
+				if (keyIndex != -1 && (keyIndex >= row.length || row[keyIndex] == null || !keySampler.accepts(KeySampler.toKeyText(row[keyIndex]))))
+					continue;
 
-			for (int i = 0; i < row.length; i++) {
-				fieldInfos.get(i).processValue(row[i] == null ? "" : row[i].toString());
+				if (row.length != fieldInfos.size()) {
+					StringUtilities.outputWithTime("WARNING: row " + lineNr + " not scanned due to field count mismatch.");
+					continue;
+				}
+
+				String[] values = new String[row.length];
+				for (int i = 0; i < row.length; i++) {
+					values[i] = row[i] == null ? "" : row[i].toString();
+				}
+				pipeline.add(values);
 			}
+		} finally {
+			pipeline.close();
 		}
+		reportThroughput(sasFileProperties.getName(), pipeline);
 
 		for (FieldInfo fieldInfo : fieldInfos) {
 			fieldInfo.trim();
@@ -603,23 +1737,55 @@ public class SourceDataScan {
 		return fieldInfos;
 	}
 
-	private class FieldInfo {
+	/**
+	 * Draws the given number of distinct indices below the bound uniformly at random (Floyd's algorithm).
+	 */
+	private static long[] drawSortedIndices(long bound, int count) {
+		Set<Long> indices = new HashSet<>(count * 2);
+		for (long j = bound - count; j < bound; j++) {
+			long index = ThreadLocalRandom.current().nextLong(j + 1);
+			if (!indices.add(index))
+				indices.add(j);
+		}
+		return indices.stream().mapToLong(Long::longValue).sorted().toArray();
+	}
+
+	private ColumnPipeline createPipeline(List<FieldInfo> fieldInfos) {
+		List<Consumer<CharSequence>> columns = new ArrayList<>(fieldInfos.size());
+		for (FieldInfo fieldInfo : fieldInfos) {
+			columns.add(fieldInfo::processValue);
+		}
+		return new ColumnPipeline(columns, columnThreadCount);
+	}
+
+	private void reportThroughput(String table, ColumnPipeline pipeline) {
+		StringUtilities.outputWithTime("Processed " + pipeline.getRowCount() + " rows of " + table + " (" + pipeline.getThroughput() + ")");
+	}
+
+	class FieldInfo {
 		public String type;
 		public String name;
 		public String label;
-		public CountingSet<String> valueCounts = new CountingSet<>();
+		public StringCountingSet valueCounts = new StringCountingSet();
+		public SpaceSavingCounter heavyHitters;
+		public HyperLogLog distinctValues = new HyperLogLog();
 		public long sumLength = 0;
 		public int maxLength = 0;
 		public long nProcessed = 0;
 		public long emptyCount = 0;
 		public long uniqueCount = 0;
 		public long rowCount = -1;
+		public String rowCountType = "";
 		public boolean isInteger = true;
 		public boolean isReal = true;
 		public boolean isDate = true;
 		public boolean isFreeText = false;
+		public Set<String> dateFormats = new LinkedHashSet<>();
 		public boolean tooManyValues = false;
-		public UniformSamplingReservoir samplingReservoir;
+		// Whether value counts below the minimum cell count were left out when saving the field, see write()
+		private boolean smallValuesLeftOut = false;
+		public int maxFrequencyError = 0;
+		public QuantileEstimator quantileEstimator;
 		public Object average;
 		public Object stdev;
 		public Object minimum;
@@ -627,19 +1793,251 @@ public class SourceDataScan {
 		public Object q1;
 		public Object q2;
 		public Object q3;
+		public Object p1;
+		public Object p5;
+		public Object p95;
+		public Object p99;
 
 		public FieldInfo(String name) {
 			this.name = name;
 			if (calculateNumericStats) {
-				this.samplingReservoir = new UniformSamplingReservoir(numStatsSamplerSize);
+				if (quantileMethod == QuantileMethod.SKETCH)
+					this.quantileEstimator = new KllQuantileSketch(QUANTILE_SKETCH_K);
+				else
+					this.quantileEstimator = new UniformSamplingReservoir(numStatsSamplerSize);
 			}
 		}
 
+		/**
+		 * Reads a trimmed field info, as written by {@link #write(DataOutputStream)}.
+		 */
+		public FieldInfo(DataInputStream in) throws IOException {
+			name = ScanStateFile.readString(in);
+			type = ScanStateFile.readString(in);
+			label = ScanStateFile.readString(in);
+			valueCounts = readValueCounts(in);
+			smallValuesLeftOut = in.readBoolean();
+			byte[] registers = new byte[in.readInt()];
+			in.readFully(registers);
+			distinctValues = HyperLogLog.fromByteArray(registers);
+			sumLength = in.readLong();
+			maxLength = in.readInt();
+			nProcessed = in.readLong();
+			emptyCount = in.readLong();
+			uniqueCount = in.readLong();
+			rowCount = in.readLong();
+			rowCountType = ScanStateFile.readString(in);
+			isInteger = in.readBoolean();
+			isReal = in.readBoolean();
+			isDate = in.readBoolean();
+			isFreeText = in.readBoolean();
+			int dateFormatCount = in.readInt();
+			for (int i = 0; i < dateFormatCount; i++)
+				dateFormats.add(ScanStateFile.readString(in));
+			tooManyValues = in.readBoolean();
+			maxFrequencyError = in.readInt();
+			average = readStatistic(in);
+			stdev = readStatistic(in);
+			minimum = readStatistic(in);
+			maximum = readStatistic(in);
+			q1 = readStatistic(in);
+			q2 = readStatistic(in);
+			q3 = readStatistic(in);
+			p1 = readStatistic(in);
+			p5 = readStatistic(in);
+			p95 = readStatistic(in);
+			p99 = readStatistic(in);
+		}
+
+		/**
+		 * Writes everything needed to report the field. The field info must have been trimmed. Like in the report, value
+		 * counts below the minimum cell count are left out.
+		 */
+		public void write(DataOutputStream out) throws IOException {
+			ScanStateFile.writeString(out, name);
+			ScanStateFile.writeString(out, type);
+			ScanStateFile.writeString(out, label);
+			out.writeBoolean(writeValueCounts(out, minCellCount) || smallValuesLeftOut);
+			byte[] registers = distinctValues.toByteArray();
+			out.writeInt(registers.length);
+			out.write(registers);
+			out.writeLong(sumLength);
+			out.writeInt(maxLength);
+			out.writeLong(nProcessed);
+			out.writeLong(emptyCount);
+			out.writeLong(uniqueCount);
+			out.writeLong(rowCount);
+			ScanStateFile.writeString(out, rowCountType);
+			out.writeBoolean(isInteger);
+			out.writeBoolean(isReal);
+			out.writeBoolean(isDate);
+			out.writeBoolean(isFreeText);
+			out.writeInt(dateFormats.size());
+			for (String dateFormat : dateFormats)
+				ScanStateFile.writeString(out, dateFormat);
+			out.writeBoolean(tooManyValues);
+			out.writeInt(getMaxFrequencyError());
+			for (Object statistic : Arrays.asList(average, stdev, minimum, maximum, q1, q2, q3, p1, p5, p95, p99))
+				writeStatistic(out, statistic);
+		}
+
+		/**
+		 * Writes the state of the field from which the scan can continue, as read by {@link #readState(DataInputStream)}.
+		 * The field info must not have been trimmed. The name, type and label are not included. As the counts of later
+		 * scans are added to them, all value counts are included, also those below the minimum cell count.
+		 */
+		public void writeState(DataOutputStream out) throws IOException {
+			writeValueCounts(out, 0);
+			out.writeBoolean(heavyHitters != null);
+			if (heavyHitters != null) {
+				List<String> values = new ArrayList<>(heavyHitters.size());
+				heavyHitters.forEachCount((value, count) -> values.add(value));
+				out.writeInt(heavyHitters.getCapacity());
+				out.writeInt(values.size());
+				for (String value : values) {
+					ScanStateFile.writeString(out, value);
+					out.writeInt(heavyHitters.getCount(value));
+					out.writeInt(heavyHitters.getError(value));
+				}
+			}
+			byte[] registers = distinctValues.toByteArray();
+			out.writeInt(registers.length);
+			out.write(registers);
+			out.writeLong(sumLength);
+			out.writeInt(maxLength);
+			out.writeLong(nProcessed);
+			out.writeLong(emptyCount);
+			out.writeLong(uniqueCount);
+			out.writeBoolean(isInteger);
+			out.writeBoolean(isReal);
+			out.writeBoolean(isDate);
+			out.writeBoolean(isFreeText);
+			out.writeInt(dateFormats.size());
+			for (String dateFormat : dateFormats)
+				ScanStateFile.writeString(out, dateFormat);
+			out.writeBoolean(tooManyValues);
+			out.writeInt(maxFrequencyError);
+			out.writeBoolean(quantileEstimator != null);
+			if (quantileEstimator != null)
+				quantileEstimator.write(out);
+		}
+
+		/**
+		 * Replaces the state of the field by the one written by {@link #writeState(DataOutputStream)}, after which values
+		 * can be processed or merged as if the scan had not stopped.
+		 */
+		public void readState(DataInputStream in) throws IOException {
+			valueCounts = readValueCounts(in);
+			heavyHitters = null;
+			if (in.readBoolean()) {
+				heavyHitters = new SpaceSavingCounter(in.readInt());
+				int counterCount = in.readInt();
+				for (int i = 0; i < counterCount; i++)
+					heavyHitters.addCounter(ScanStateFile.readString(in), in.readInt(), in.readInt());
+			}
+			byte[] registers = new byte[in.readInt()];
+			in.readFully(registers);
+			distinctValues = HyperLogLog.fromByteArray(registers);
+			sumLength = in.readLong();
+			maxLength = in.readInt();
+			nProcessed = in.readLong();
+			emptyCount = in.readLong();
+			uniqueCount = in.readLong();
+			isInteger = in.readBoolean();
+			isReal = in.readBoolean();
+			isDate = in.readBoolean();
+			isFreeText = in.readBoolean();
+			dateFormats.clear();
+			int dateFormatCount = in.readInt();
+			for (int i = 0; i < dateFormatCount; i++)
+				dateFormats.add(ScanStateFile.readString(in));
+			tooManyValues = in.readBoolean();
+			maxFrequencyError = in.readInt();
+			quantileEstimator = null;
+			if (in.readBoolean()) {
+				if (quantileMethod == QuantileMethod.SKETCH)
+					quantileEstimator = KllQuantileSketch.read(in);
+				else
+					quantileEstimator = UniformSamplingReservoir.read(in);
+			}
+		}
+
+		/**
+		 * Writes the values with a count of at least the given minimum, and their counts.
+		 *
+		 * @return whether values were left out
+		 */
+		private boolean writeValueCounts(DataOutputStream out, int minCount) throws IOException {
+			int[] written = new int[1];
+			valueCounts.forEachCount((value, count) -> {
+				if (count >= minCount)
+					written[0]++;
+			});
+			out.writeInt(written[0]);
+			IOException[] exception = new IOException[1];
+			valueCounts.forEachCount((value, count) -> {
+				if (count < minCount)
+					return;
+				try {
+					ScanStateFile.writeString(out, value);
+					out.writeInt(count);
+				} catch (IOException e) {
+					exception[0] = e;
+				}
+			});
+			if (exception[0] != null)
+				throw exception[0];
+			return written[0] < valueCounts.size();
+		}
+
+		private StringCountingSet readValueCounts(DataInputStream in) throws IOException {
+			StringCountingSet counts = new StringCountingSet();
+			int valueCount = in.readInt();
+			for (int i = 0; i < valueCount; i++) {
+				String value = ScanStateFile.readString(in);
+				counts.add(value, in.readInt());
+			}
+			return counts;
+		}
+
+		/**
+		 * Writes a reported statistic, which is a number, a date as text, or missing.
+		 */
+		private void writeStatistic(DataOutputStream out, Object statistic) throws IOException {
+			if (statistic instanceof Number) {
+				out.writeByte('D');
+				out.writeDouble(((Number) statistic).doubleValue());
+			} else if (statistic != null) {
+				out.writeByte('S');
+				ScanStateFile.writeString(out, statistic.toString());
+			} else {
+				out.writeByte('N');
+			}
+		}
+
+		private Object readStatistic(DataInputStream in) throws IOException {
+			byte kind = in.readByte();
+			if (kind == 'D')
+				return in.readDouble();
+			else if (kind == 'S')
+				return ScanStateFile.readString(in);
+			else
+				return null;
+		}
+
 		public void trim() {
 			// Only keep values that are used in scan report
 			if (valueCounts.size() > maxValues) {
 				valueCounts.keepTopN(maxValues);
 			}
+			if (heavyHitters != null) {
+				// The sketch is already bounded, and its counters are needed to report the frequency error
+				maxFrequencyError += heavyHitters.getMaxError();
+				valueCounts = new StringCountingSet();
+				heavyHitters.forEachCount(valueCounts::add);
+				valueCounts.keepTopN(maxValues);
+				heavyHitters = null;
+			}
 
 			// Calculate numeric stats and dereference sampling reservoir to save memory.
 			if (calculateNumericStats) {
@@ -647,17 +2045,98 @@ public class SourceDataScan {
 				stdev = getStandardDeviation();
 				minimum = getMinimum();
 				maximum = getMaximum();
-				q1 = getQ1();
-				q2 = getQ2();
-				q3 = getQ3();
+				q1 = getQuantile(0.25);
+				q2 = getQuantile(0.5);
+				q3 = getQuantile(0.75);
+				if (extraPercentiles) {
+					p1 = getQuantile(0.01);
+					p5 = getQuantile(0.05);
+					p95 = getQuantile(0.95);
+					p99 = getQuantile(0.99);
+				}
 			}
-			samplingReservoir = null;
+			quantileEstimator = null;
+		}
+
+		/**
+		 * Adds the results of scanning another part of the same field, for instance another chunk of the same file.
+		 * Both field infos must not have been trimmed yet.
+		 */
+		public void merge(FieldInfo other) {
+			// Words cannot be turned back into values, so if either part was found to be free text, both are
+			if (isFreeText && !other.isFreeText)
+				other.convertToWordCounts();
+			else if (!isFreeText && other.isFreeText)
+				convertToWordCounts();
+
+			nProcessed += other.nProcessed;
+			emptyCount += other.emptyCount;
+			sumLength += other.sumLength;
+			maxLength = Math.max(maxLength, other.maxLength);
+			isInteger &= other.isInteger;
+			isReal &= other.isReal;
+			isDate &= other.isDate;
+			dateFormats.addAll(other.dateFormats);
+			distinctValues.merge(other.distinctValues);
+
+			// The counts of the other part are only as precise as that part kept them
+			tooManyValues |= other.tooManyValues;
+			maxFrequencyError += other.getMaxFrequencyError();
+			if (other.heavyHitters != null && heavyHitters == null && !isFreeText)
+				switchToHeavyHitters();
+			if (other.heavyHitters != null)
+				other.heavyHitters.forEachCount(this::countValue);
+			else
+				other.valueCounts.forEachCount(this::countValue);
+			if (tooManyValues || isFreeText)
+				uniqueCount += other.uniqueCount;
+			else
+				uniqueCount = valueCounts.size();
+
+			if (quantileEstimator != null && other.quantileEstimator != null)
+				quantileEstimator.merge(other.quantileEstimator);
 		}
 
 		public boolean hasValuesTrimmed() {
 			return tooManyValues;
 		}
 
+		/**
+		 * Derives whether values are integers, reals or dates from the data type declared in the database, for when
+		 * the values themselves are not checked.
+		 */
+		public void setValueTypeFromColumnType() {
+			String columnType = type == null ? "" : type.trim().toLowerCase();
+			if (dbType == DbType.TERADATA) {
+				isInteger = columnType.matches("i[128]?");
+				isReal = isInteger || columnType.matches("d|f|n");
+				isDate = columnType.matches("da|ts|sz");
+			} else {
+				isInteger = columnType.matches(".*int(eger|64)?\\b.*") && !columnType.contains("point");
+				isReal = isInteger || columnType.matches(".*(numeric|decimal|number|float|double|real|money).*");
+				isDate = columnType.matches(".*(date|timestamp).*");
+			}
+		}
+
+		/**
+		 * Returns true if the data type declared in the database is a character type
+		 */
+		public boolean isText() {
+			String columnType = type == null ? "" : type.trim().toLowerCase();
+			if (dbType == DbType.TERADATA)
+				return columnType.matches("c[vfo]");
+			else
+				return columnType.matches(".*(char|text|string|clob).*");
+		}
+
+		/**
+		 * Returns by how much any of the reported value frequencies may be overestimated. This is only non-zero when
+		 * counting heavy hitters.
+		 */
+		public int getMaxFrequencyError() {
+			return heavyHitters != null ? heavyHitters.getMaxError() : maxFrequencyError;
+		}
+
 		public Double getFractionEmpty() {
 			if (nProcessed == 0)
 				return 1d;
@@ -684,6 +2163,16 @@ public class SourceDataScan {
 				return DataType.VARCHAR.name();
 		}
 
+		/**
+		 * Returns the formats of the values of a date field, for instance yyyy-MM-dd
+		 */
+		public String getDateFormat() {
+			if (getTypeDescription().equals(DataType.DATE.name()))
+				return String.join(", ", dateFormats);
+			else
+				return "";
+		}
+
 		public Double getFractionUnique() {
 			if (nProcessed == 0 || uniqueCount == 1) {
 				return 0d;
@@ -693,83 +2182,170 @@ public class SourceDataScan {
 
 		}
 
-		public void processValue(String value) {
-			nProcessed++;
-			sumLength += value.length();
-			if (value.length() > maxLength)
-				maxLength = value.length();
+		/**
+		 * Estimates the number of unique values from the distinct value sketch. Used when not all values could be kept
+		 * in memory, which makes uniqueCount an upper limit at best.
+		 */
+		public long getEstimatedUniqueCount() {
+			return Math.min(distinctValues.estimate(), nProcessed);
+		}
+
+		/**
+		 * Returns the estimated unique count with its error margin of two standard errors (about 95% of estimates are
+		 * within this margin).
+		 */
+		public String getUniqueCountEstimate() {
+			return String.format("~ %d (± %.1f%%)", getEstimatedUniqueCount(), 200 * distinctValues.getRelativeStandardError());
+		}
+
+		public String getFractionUniqueEstimate() {
+			if (nProcessed == 0)
+				return "0";
+			return String.format("~ %.3f", getEstimatedUniqueCount() / (double) nProcessed);
+		}
 
-			String trimValue = value.trim();
-			if (trimValue.length() == 0)
+		/**
+		 * Processes a value. The value is not kept, so it can be a buffer that is reused for the next value.
+		 */
+		public void processValue(CharSequence value) {
+			nProcessed++;
+			distinctValues.add(value);
+			int length = value.length();
+			sumLength += length;
+			if (length > maxLength)
+				maxLength = length;
+
+			// Trim as String.trim() does, but only create the trimmed String when it is needed
+			int start = 0;
+			int end = length;
+			while (start < end && value.charAt(start) <= ' ')
+				start++;
+			while (end > start && value.charAt(end - 1) <= ' ')
+				end--;
+			boolean isEmpty = start == end;
+			if (isEmpty)
 				emptyCount++;
 
 			if (!isFreeText) {
-				boolean newlyAdded = valueCounts.add(value);
-				if (newlyAdded) uniqueCount++;
-
-				if (trimValue.length() != 0) {
-					evaluateDataType(trimValue);
+				boolean newlyAdded = countValue(value);
+				if (newlyAdded) {
+					uniqueCount++;
+					// A value that was counted before cannot change the type
+					if (!isEmpty && (isReal || isInteger || isDate))
+						evaluateDataType(value, start, end);
 				}
 
 				if (nProcessed == N_FOR_FREE_TEXT_CHECK && !isInteger && !isReal && !isDate) {
 					doFreeTextCheck();
 				}
 			} else {
-				valueCounts.addAll(StringUtilities.mapToWords(trimValue.toLowerCase()));
+				String trimValue = value.subSequence(start, end).toString();
+				for (String word : StringUtilities.mapToWords(trimValue.toLowerCase()))
+					countValue(word);
 			}
 
-			// if over this large constant number, then trimmed back to size used in report (maxValues).
-			if (!tooManyValues && valueCounts.size() > MAX_VALUES_IN_MEMORY) {
-				tooManyValues = true;
-				this.trim();
-			}
-
-			if (calculateNumericStats && !trimValue.isEmpty()) {
+			if (calculateNumericStats && !isEmpty) {
 				if (isInteger || isReal) {
-					samplingReservoir.add(Double.parseDouble(trimValue));
+					quantileEstimator.add(Double.parseDouble(value.subSequence(start, end).toString()));
 				} else if (isDate) {
-					samplingReservoir.add(DateUtilities.parseDate(trimValue));
+					quantileEstimator.add(dateUtilities.parse(value, start, end));
 				}
 			}
 
 		}
 
+		/**
+		 * Counts the value, and handles running out of memory for distinct values according to the value counting
+		 * strategy.
+		 *
+		 * @return true if the value was not counted before
+		 */
+		private boolean countValue(CharSequence value) {
+			return countValue(value, 1);
+		}
+
+		private boolean countValue(CharSequence value, int count) {
+			if (heavyHitters != null) {
+				return heavyHitters.add(value, count);
+			}
+			boolean newlyAdded = valueCounts.add(value, count);
+			// if over this large constant number, then trimmed back to size used in report (maxValues), or continue in
+			// a sketch of bounded size.
+			if (!tooManyValues && valueCounts.size() > MAX_VALUES_IN_MEMORY) {
+				tooManyValues = true;
+				if (valueCountingStrategy == ValueCountingStrategy.HEAVY_HITTERS) {
+					switchToHeavyHitters();
+				} else {
+					valueCounts.keepTopN(maxValues);
+				}
+			}
+			return newlyAdded;
+		}
+
+		private void switchToHeavyHitters() {
+			// Seeding the sketch with the exact top counts keeps its guarantees, as every dropped value has a count
+			// no higher than the lowest seeded count.
+			heavyHitters = new SpaceSavingCounter(Math.max(HEAVY_HITTERS_CAPACITY, maxValues));
+			valueCounts.keepTopN(heavyHitters.getCapacity());
+			valueCounts.forEachCount(heavyHitters::add);
+			valueCounts = new StringCountingSet();
+		}
+
 		public List<Pair<String, Integer>> getSortedValuesWithoutSmallValues() {
-			List<Pair<String, Integer>> result = valueCounts.key2count.entrySet().stream()
-					.filter(e -> e.getValue().count >= minCellCount)
-					.sorted(Comparator.<Map.Entry<String, Count>>comparingInt(e -> e.getValue().count).reversed())
+			List<Pair<String, Integer>> counts = new ArrayList<>();
+			valueCounts.forEachCount((value, count) -> {
+				if (count >= minCellCount)
+					counts.add(new Pair<>(value, count));
+			});
+			List<Pair<String, Integer>> result = counts.stream()
+					.sorted(Comparator.<Pair<String, Integer>>comparingInt(Pair::getItem2).reversed())
 					.limit(maxValues)
-					.map(e -> new Pair<>(e.getKey(), e.getValue().count))
 					.collect(Collectors.toCollection(ArrayList::new));
 
-			if (result.size() < valueCounts.key2count.size()) {
+			if (result.size() < valueCounts.size() || smallValuesLeftOut) {
 				result.add(new Pair<>("List truncated...", -1));
 			}
 			return result;
 		}
 
-		private void evaluateDataType(String value) {
-			if (isReal && !StringUtilities.isNumber(value))
+		private void evaluateDataType(CharSequence value, int start, int end) {
+			int type = TypeClassifier.classify(value, start, end);
+			if ((type & TypeClassifier.REAL) == 0)
 				isReal = false;
-			if (isInteger && !StringUtilities.isLong(value))
+			if ((type & TypeClassifier.INTEGER) == 0)
 				isInteger = false;
-			if (isDate && !StringUtilities.isDate(value))
-				isDate = false;
+			if (isDate) {
+				String dateFormat = dateUtilities.getFormat(value, start, end);
+				if (dateFormat == null)
+					isDate = false;
+				else
+					dateFormats.add(dateFormat);
+			}
 		}
 
 		private void doFreeTextCheck() {
 			double averageLength = sumLength / (double) (nProcessed - emptyCount);
 			if (averageLength >= MIN_AVERAGE_LENGTH_FOR_FREE_TEXT) {
-				isFreeText = true;
-				// Reset value count to word count
-				CountingSet<String> wordCounts = new CountingSet<>();
-				for (Map.Entry<String, Count> entry : valueCounts.key2count.entrySet())
-					for (String word : StringUtilities.mapToWords(entry.getKey().toLowerCase()))
-						wordCounts.add(word, entry.getValue().count);
-				valueCounts = wordCounts;
+				convertToWordCounts();
 			}
 		}
 
+		private void convertToWordCounts() {
+			isFreeText = true;
+			// Reset value count to word count
+			StringCountingSet wordCounts = new StringCountingSet();
+			ObjIntConsumer<String> countWords = (value, count) -> {
+				for (String word : StringUtilities.mapToWords(value.toLowerCase()))
+					wordCounts.add(word, count);
+			};
+			if (heavyHitters != null)
+				heavyHitters.forEachCount(countWords);
+			else
+				valueCounts.forEachCount(countWords);
+			valueCounts = wordCounts;
+			heavyHitters = null;
+		}
+
 		private Object formatNumericValue(double value) {
 			return formatNumericValue(value, false);
 		}
@@ -791,38 +2367,28 @@ public class SourceDataScan {
 		}
 
 		private Object getMinimum() {
-			double min = samplingReservoir.getPopulationMinimum();
+			double min = quantileEstimator.getPopulationMinimum();
 			return formatNumericValue(min);
 		}
 
 		private Object getMaximum() {
-			double max = samplingReservoir.getPopulationMaximum();
+			double max = quantileEstimator.getPopulationMaximum();
 			return formatNumericValue(max);
 		}
 
 		private Object getAverage() {
-			double average = samplingReservoir.getPopulationMean();
+			double average = quantileEstimator.getPopulationMean();
 			return formatNumericValue(average);
 		}
 
 		private Object getStandardDeviation() {
-			double stddev = samplingReservoir.getSampleStandardDeviation();
+			double stddev = quantileEstimator.getPopulationStandardDeviation();
 			return formatNumericValue(stddev, true);
 		}
 
-		private Object getQ1() {
-			double q1 = samplingReservoir.getSampleQuartiles().get(0);
-			return formatNumericValue(q1);
-		}
-
-		private Object getQ2() {
-			double q2 = samplingReservoir.getSampleQuartiles().get(1);
-			return formatNumericValue(q2);
-		}
-
-		private Object getQ3() {
-			double q3 = samplingReservoir.getSampleQuartiles().get(2);
-			return formatNumericValue(q3);
+		private Object getQuantile(double fraction) {
+			double quantile = quantileEstimator.getQuantile(fraction);
+			return formatNumericValue(quantile);
 		}
 
 	}
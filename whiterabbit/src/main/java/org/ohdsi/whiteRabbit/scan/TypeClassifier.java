@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+import org.ohdsi.utilities.StringUtilities;
+
+/**
+ * Decides in a single pass over the characters whether a value is an integer and/or a real, without throwing exceptions
+ * or creating objects. Dates are recognised by {@link org.ohdsi.utilities.DateUtilities}.
+ *
+ * <p>The result is the same as that of {@link StringUtilities#isLong(String)} and
+ * {@link StringUtilities#isNumber(String)} for the same (trimmed) value. Only hexadecimal floating point values are
+ * handed to StringUtilities, as they are too rare to be worth parsing here.
+ */
+public final class TypeClassifier {
+	public static final int	INTEGER	= 1;
+	public static final int	REAL	= 2;
+
+	private TypeClassifier() {
+	}
+
+	/**
+	 * Classifies the characters from start (inclusive) to end (exclusive) of the value, which should not start or end
+	 * with whitespace.
+	 *
+	 * @return a combination of the INTEGER and REAL flags
+	 */
+	public static int classify(CharSequence value, int start, int end) {
+		if (start >= end)
+			return 0;
+		char first = value.charAt(start);
+		// Shortcut for text: every integer and real starts with a digit, a sign, a dot, or the N and I of NaN and
+		// Infinity
+		if (first > '9' && first != 'N' && first != 'I' && !Character.isDigit(first))
+			return 0;
+		int type = 0;
+		if (isLong(value, start, end))
+			type |= INTEGER;
+		if (isReal(value, start, end))
+			type |= REAL;
+		return type;
+	}
+
+	/**
+	 * Same as Long.parseLong succeeding, including the check for overflow
+	 */
+	private static boolean isLong(CharSequence value, int start, int end) {
+		int i = start;
+		long limit = -Long.MAX_VALUE;
+		char first = value.charAt(i);
+		if (first == '-' || first == '+') {
+			if (first == '-')
+				limit = Long.MIN_VALUE;
+			i++;
+			if (i == end)
+				return false;
+		}
+		long multiplyLimit = limit / 10;
+		long result = 0;
+		for (; i < end; i++) {
+			int digit = Character.digit(value.charAt(i), 10);
+			if (digit < 0 || result < multiplyLimit)
+				return false;
+			result *= 10;
+			if (result < limit + digit)
+				return false;
+			result -= digit;
+		}
+		return true;
+	}
+
+	/**
+	 * Same as Double.parseDouble succeeding on a trimmed value
+	 */
+	private static boolean isReal(CharSequence value, int start, int end) {
+		int i = start;
+		char ch = value.charAt(i);
+		if (ch == '-' || ch == '+') {
+			i++;
+			if (i == end)
+				return false;
+			ch = value.charAt(i);
+		}
+		if (ch == 'N')
+			return matches(value, i, end, "NaN");
+		if (ch == 'I')
+			return matches(value, i, end, "Infinity");
+		if (ch == '0' && i + 1 < end && (value.charAt(i + 1) == 'x' || value.charAt(i + 1) == 'X'))
+			return StringUtilities.isNumber(value.subSequence(start, end).toString());
+
+		int digits = 0;
+		boolean dot = false;
+		for (; i < end; i++) {
+			ch = value.charAt(i);
+			if (ch >= '0' && ch <= '9')
+				digits++;
+			else if (ch == '.' && !dot)
+				dot = true;
+			else
+				break;
+		}
+		if (digits == 0)
+			return false;
+		if (i < end && (ch == 'e' || ch == 'E')) {
+			i++;
+			if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+'))
+				i++;
+			int exponentDigits = 0;
+			while (i < end && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+				exponentDigits++;
+				i++;
+			}
+			if (exponentDigits == 0)
+				return false;
+		}
+		// Optional type suffix
+		if (i == end - 1) {
+			ch = value.charAt(i);
+			if (ch == 'f' || ch == 'F' || ch == 'd' || ch == 'D')
+				i++;
+		}
+		return i == end;
+	}
+
+	private static boolean matches(CharSequence value, int start, int end, String expected) {
+		if (end - start != expected.length())
+			return false;
+		for (int i = 0; i < expected.length(); i++)
+			if (value.charAt(start + i) != expected.charAt(i))
+				return false;
+		return true;
+	}
+}
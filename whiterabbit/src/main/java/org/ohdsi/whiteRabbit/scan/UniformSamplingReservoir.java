@@ -1,7 +1,8 @@
 package org.ohdsi.whiteRabbit.scan;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -10,20 +11,20 @@ import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Uniform sampling reservoir for streaming. This should capture the input distribution in order
- * to compute quartiles, using so-called Algorithm R.
+ * to compute quartiles. Which values are kept is decided by a {@link ReservoirSampler}, so once the
+ * reservoir is full, random numbers are only drawn for the values that are selected.
  *
  * <p>The maximum size of the reservoir can be increased to get more accurate quartile estimations.
  * As long as the number of samples is lower than the maximum size of the reservoir, the quartiles
- * are computed exactly. Otherwise they are an estimate. The minimum, maximum and average are always
- * calculated exactly.
+ * are computed exactly. Otherwise they are an estimate. The minimum, maximum, average and standard
+ * deviation of the population are always calculated exactly, see {@link RunningStatistics}.
  */
-public class UniformSamplingReservoir {
+public class UniformSamplingReservoir implements QuantileEstimator {
     private double[] samples;
     private int maxSize;
     private long populationCount;
-    private BigDecimal populationSum;
-    private double populationMinimum = Double.POSITIVE_INFINITY;
-    private double populationMaximum = Double.NEGATIVE_INFINITY;
+    private final RunningStatistics population = new RunningStatistics();
+    private final ReservoirSampler<Double> sampler;
     private transient int currentSampleLength;
 
     /**
@@ -37,29 +38,104 @@ public class UniformSamplingReservoir {
         }
         this.maxSize = maxSize;
         this.samples = new double[maxSize];
-        this.populationSum = new BigDecimal(0);
         this.populationCount = 0;
         this.currentSampleLength = 0;
+        this.sampler = new ReservoirSampler<>(maxSize);
     }
 
     /** Add a sample to the reservoir. */
+    @Override
     public void add(double value) {
-        if (currentSampleLength == maxSize) {
-            long removeIndex = ThreadLocalRandom.current().nextLong(populationCount);
-            if (removeIndex < maxSize) {
-                removeAndAdd((int)removeIndex, value);
-            }
-        } else {
+        // The samples are kept sorted, so replacing the sample at a random position replaces a random sample
+        int removeIndex = sampler.nextSlot();
+        if (removeIndex == currentSampleLength) {
             removeAndAdd(currentSampleLength, value);
             currentSampleLength++;
+        } else if (removeIndex >= 0) {
+            removeAndAdd(removeIndex, value);
         }
 
-        populationSum = populationSum.add(new BigDecimal(value));
-        populationMinimum = Math.min(value, populationMinimum);
-        populationMaximum = Math.max(value, populationMaximum);
+        population.add(value);
         populationCount++;
     }
 
+    /**
+     * Add all values represented by another reservoir, as if they had been added to this one. Every sample of the
+     * merged reservoir is drawn from one of the two reservoirs, with a probability proportional to the number of values
+     * that reservoir still represents, so the result is again a uniform sample of all values.
+     */
+    @Override
+    public void merge(QuantileEstimator estimator) {
+        if (!(estimator instanceof UniformSamplingReservoir)) {
+            throw new IllegalArgumentException("Cannot merge a " + estimator.getClass().getSimpleName() + " into a UniformSamplingReservoir");
+        }
+        UniformSamplingReservoir other = (UniformSamplingReservoir) estimator;
+        long totalCount = populationCount + other.populationCount;
+        int mergedLength = (int) Math.min(maxSize, totalCount);
+        double[] ours = shuffledSamples(this);
+        double[] theirs = shuffledSamples(other);
+        double[] merged = new double[maxSize];
+        long oursRemaining = populationCount;
+        long theirsRemaining = other.populationCount;
+        int oursIndex = 0;
+        int theirsIndex = 0;
+        for (int i = 0; i < mergedLength; i++) {
+            boolean takeOurs = ThreadLocalRandom.current().nextLong(oursRemaining + theirsRemaining) < oursRemaining;
+            if (takeOurs) {
+                merged[i] = ours[oursIndex++];
+                oursRemaining--;
+            } else {
+                merged[i] = theirs[theirsIndex++];
+                theirsRemaining--;
+            }
+        }
+        Arrays.sort(merged, 0, mergedLength);
+
+        samples = merged;
+        currentSampleLength = mergedLength;
+        population.merge(other.population);
+        populationCount = totalCount;
+        sampler.setCount(totalCount);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(maxSize);
+        out.writeLong(populationCount);
+        population.write(out);
+        out.writeInt(currentSampleLength);
+        for (int i = 0; i < currentSampleLength; i++) {
+            out.writeDouble(samples[i]);
+        }
+    }
+
+    /**
+     * Read a reservoir written by {@link #write(DataOutput)}. Values added after this are sampled as if they had been
+     * added to the original reservoir.
+     */
+    public static UniformSamplingReservoir read(DataInput in) throws IOException {
+        UniformSamplingReservoir reservoir = new UniformSamplingReservoir(in.readInt());
+        reservoir.populationCount = in.readLong();
+        reservoir.population.read(in);
+        reservoir.currentSampleLength = in.readInt();
+        for (int i = 0; i < reservoir.currentSampleLength; i++) {
+            reservoir.samples[i] = in.readDouble();
+        }
+        reservoir.sampler.setCount(reservoir.populationCount);
+        return reservoir;
+    }
+
+    private static double[] shuffledSamples(UniformSamplingReservoir reservoir) {
+        double[] samples = Arrays.copyOf(reservoir.samples, reservoir.currentSampleLength);
+        for (int i = samples.length - 1; i > 0; i--) {
+            int j = ThreadLocalRandom.current().nextInt(i + 1);
+            double sample = samples[i];
+            samples[i] = samples[j];
+            samples[j] = sample;
+        }
+        return samples;
+    }
+
     private void removeAndAdd(int removeIndex, double value) {
         int addIndex = Arrays.binarySearch(samples, 0, currentSampleLength, value);
         if (addIndex < 0) {
@@ -109,17 +185,7 @@ public class UniformSamplingReservoir {
                 break;
             default:
                 for (int i = 1; i <= 3; i++) {
-                    double pos = i * (currentSampleLength + 1) * 0.25d; // 25 percentile steps
-                    int intPos = (int) pos;
-                    if (intPos == 0) {
-                        quartiles.add(samples[0]);
-                    } else if (intPos == currentSampleLength) {
-                        quartiles.add(samples[currentSampleLength - 1]);
-                    } else {
-                        double diff = pos - intPos;
-                        double base = samples[intPos - 1];
-                        quartiles.add(base + diff * (samples[intPos] - base));
-                    }
+                    quartiles.add(getQuantile(i * 0.25d)); // 25 percentile steps
                 }
                 break;
         }
@@ -127,6 +193,15 @@ public class UniformSamplingReservoir {
         return quartiles;
     }
 
+    /**
+     * Get a quantile of the underlying distribution, interpolated between the samples. If the number of samples is
+     * larger than the maximum size of the reservoir, this will be an estimate.
+     */
+    @Override
+    public double getQuantile(double fraction) {
+        return QuantileEstimator.interpolate(samples, currentSampleLength, fraction);
+    }
+
     public double getSampleMean() {
         return Arrays.stream(samples).limit(currentSampleLength).sum() / currentSampleLength;
     }
@@ -142,20 +217,28 @@ public class UniformSamplingReservoir {
         return Math.sqrt(varianceSum / (currentSampleLength-1));
     }
 
+    @Override
     public double getPopulationMean() {
-        if (populationCount == 0) {
-            return Double.NaN;
-        }
-        BigDecimal popCount = BigDecimal.valueOf(populationCount);
-        return populationSum.divide(popCount, populationSum.scale() + popCount.precision(), RoundingMode.HALF_UP).doubleValue();
+        return population.getMean();
+    }
+
+    /**
+     * Get the standard deviation of all values added, not only of the samples.
+     * @return double standard deviation
+     */
+    @Override
+    public double getPopulationStandardDeviation() {
+        return population.getStandardDeviation();
     }
 
+    @Override
     public double getPopulationMinimum() {
-        return populationMinimum;
+        return population.getMinimum();
     }
 
+    @Override
     public double getPopulationMaximum() {
-        return populationMaximum;
+        return population.getMaximum();
     }
 
     /** Get the currently stored samples. */
@@ -173,6 +256,7 @@ public class UniformSamplingReservoir {
     }
 
     /** Get the number of samples that are being represented by the reservoir. */
+    @Override
     public long getCount() {
         return populationCount;
     }
@@ -214,7 +298,7 @@ public class UniformSamplingReservoir {
         System.out.println(us.getSamples().toString());
         System.out.println(us.getCount());
         System.out.println(us.getSampleQuartiles().toString());
-        System.out.println(us.populationSum.doubleValue());
+        System.out.println(us.population.getSum());
         System.out.println(us.getPopulationMean());
         System.out.println(us.getPopulationMinimum());
         System.out.println(us.getPopulationMaximum());
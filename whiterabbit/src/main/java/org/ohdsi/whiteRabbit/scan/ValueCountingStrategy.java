@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * This file is part of WhiteRabbit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.whiteRabbit.scan;
+
+/**
+ * How value frequencies are counted once a field has more than {@link SourceDataScan#MAX_VALUES_IN_MEMORY} distinct
+ * values.
+ */
+public enum ValueCountingStrategy {
+	/**
+	 * Keep only the most frequent values seen so far, and keep counting without a limit after that.
+	 */
+	TRIM,
+	/**
+	 * Switch to a heavy-hitters sketch with a fixed number of counters, reporting an upper bound of the frequency error.
+	 */
+	HEAVY_HITTERS;
+}